@@ -1,5 +1,13 @@
 package com.shaposhnyk.unilines
 
+import java.util.Collections
+import java.util.EnumSet
+import java.util.function.BiConsumer
+import java.util.function.BinaryOperator
+import java.util.function.Function
+import java.util.function.Supplier
+import java.util.stream.Collector
+
 /**
  * Structured UBiPipeline, which consumes a source object (T) and a working context (C)
  * Processing is done by object it-self as well as by underlying sub-pipelines
@@ -38,4 +46,41 @@ interface UBiPipeline<in T, C> : UField {
             workingCtx
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Pipeline as a stream collector. Every thread of a parallel stream consumes its elements
+     * into its own working context, then partial contexts are combined in encounter order,
+     * so writers need no synchronization
+     * @param contextSupplier - empty working context supplier
+     * @param combiner - appends the second context to the first one, returning the result
+     */
+    fun asCollector(contextSupplier: () -> C, combiner: (C, C) -> C): Collector<@UnsafeVariance T, C, C> {
+        return asCollectorJ(Supplier { contextSupplier() }, BinaryOperator { left, right -> combiner(left, right) })
+    }
+
+    fun asCollectorJ(contextSupplier: Supplier<C>, combiner: BinaryOperator<C>): Collector<@UnsafeVariance T, C, C> {
+        return PipelineCollector(this, contextSupplier, combiner)
+    }
+}
+
+/**
+ * Stream collector consuming elements with a pipeline, the working context being the result
+ */
+internal class PipelineCollector<T, C>(private val pipeline: UBiPipeline<T, C>,
+                                       private val contextSupplier: Supplier<C>,
+                                       private val combiner: BinaryOperator<C>) : Collector<T, C, C> {
+    override fun supplier(): Supplier<C> = contextSupplier
+
+    override fun accumulator(): BiConsumer<C, T> = BiConsumer { c, t -> pipeline.consume(t, c) }
+
+    override fun combiner(): BinaryOperator<C> = combiner
+
+    override fun finisher(): Function<C, C> = Function { c -> c }
+
+    override fun characteristics(): Set<Collector.Characteristics> = CHARACTERISTICS
+
+    private companion object {
+        val CHARACTERISTICS: Set<Collector.Characteristics> =
+                Collections.unmodifiableSet(EnumSet.of(Collector.Characteristics.IDENTITY_FINISH))
+    }
+}
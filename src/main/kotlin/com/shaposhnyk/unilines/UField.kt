@@ -1,5 +1,8 @@
 package com.shaposhnyk.unilines
 
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReferenceArray
+
 /**
  * Mapping Field interface, with a factory companion object
  */
@@ -30,6 +33,11 @@ interface UField {
      */
     fun description(): String = ""
 
+    /**
+     * @return dense id of an interned field (starting from 0), or -1 if the field is not interned (see intern())
+     */
+    fun id(): Int = -1
+
     /*
      * builder style setters
      */
@@ -61,6 +69,12 @@ interface UField {
                 private val internal: String,
                 private val external: String) : UField {
 
+            private val hash = 31 * internal.hashCode() + external.hashCode()
+
+            internal var internedId = -1
+
+            override fun id(): Int = internedId
+
             override fun isPublic(): Boolean = true
 
             override fun hasFilter(): Boolean = false
@@ -73,6 +87,7 @@ interface UField {
 
             override fun equals(other: Any?): Boolean {
                 if (this === other) return true
+                if (internedId >= 0 && isInterned(other)) return false // distinct canonical instances
                 if (other is SimpleImmutableField) {
                     return internal == other.internal && external == other.external
                 } else if (other is UField) {
@@ -84,6 +99,8 @@ interface UField {
                 }
                 return false
             }
+
+            override fun hashCode(): Int = hash
         }
 
         /**
@@ -96,6 +113,13 @@ interface UField {
                 private val hasFilter: Boolean = false,
                 private val description: String = "") : UField {
 
+            // same as SimpleImmutableField, as they may be equal
+            private val hash = 31 * internal.hashCode() + external.hashCode()
+
+            internal var internedId = -1
+
+            override fun id(): Int = internedId
+
             override fun isPublic(): Boolean = this.public
 
             override fun hasFilter(): Boolean = this.hasFilter
@@ -108,20 +132,95 @@ interface UField {
 
             override fun equals(other: Any?): Boolean {
                 if (this === other) return true
+                if (internedId >= 0 && isInterned(other)) return false // distinct canonical instances
                 if (other is SimpleImmutableField && public && !hasFilter && description.isEmpty()) {
                     return internal == other.internalName() && external == other.externalName()
                 }
                 return areEqual(this, other)
             }
 
-            override fun hashCode(): Int {
-                // Hope this will be optimized by compiler
-                // Anyway this could be faster than calculating hashCode() on 5 fields
-                // But if not this should be rewritten
-                return SimpleImmutableField(internal, external).hashCode()
+            override fun hashCode(): Int = hash
+        }
+
+        private val canonical = ConcurrentHashMap<UField, UField>()
+
+        @Volatile
+        private var byId = AtomicReferenceArray<UField?>(64)
+
+        @Volatile
+        private var internedCount = 0
+
+        /**
+         * Interns a field. Interned fields are canonical: equal interned fields are the same instance,
+         * have a precomputed hash and a dense id, which can be used to index per-field side tables.
+         * Interning is opt-in: interned fields are never released, so it suits fields declared once
+         * by pipelines, not field names built per request
+         * @return canonical instance of a field equal to the given one
+         */
+        fun intern(f: UField): UField {
+            if (isInterned(f)) {
+                return f
+            }
+            val key = if (f is SimpleImmutableField || f is ImmutableField) f else copyOf(f)
+            val found = canonical[key]
+            if (found != null) {
+                return found
+            }
+            synchronized(canonical) {
+                return canonical[key] ?: register(key)
+            }
+        }
+
+        private fun register(f: UField): UField {
+            val id = internedCount
+            when (f) {
+                is SimpleImmutableField -> f.internedId = id
+                is ImmutableField -> f.internedId = id
+            }
+            if (id == byId.length()) {
+                val grown = AtomicReferenceArray<UField?>(2 * id)
+                for (i in 0 until id) {
+                    grown.set(i, byId.get(i))
+                }
+                byId = grown
+            }
+            byId.set(id, f)
+            internedCount = id + 1
+            canonical.put(f, f)
+            return f
+        }
+
+        private fun copyOf(f: UField): UField {
+            if (f.isPublic() && !f.hasFilter() && f.description().isEmpty()) {
+                return SimpleImmutableField(f.internalName(), f.externalName())
+            }
+            return ImmutableField(f.internalName(), f.externalName(), f.isPublic(), f.hasFilter(), f.description())
+        }
+
+        private fun isInterned(f: Any?): Boolean {
+            return when (f) {
+                is SimpleImmutableField -> f.internedId >= 0
+                is ImmutableField -> f.internedId >= 0
+                else -> false
             }
         }
 
+        /**
+         * @return interned field with the given id
+         * @throws IndexOutOfBoundsException if no field was interned with this id
+         */
+        fun byId(id: Int): UField {
+            if (id < 0 || id >= internedCount) {
+                throw IndexOutOfBoundsException("No interned field with id $id")
+            }
+            return byId.get(id)!!
+        }
+
+        /**
+         * @return number of interned fields, which is also the next id to be attributed
+         */
+        fun internedCount(): Int = internedCount
+
         /**
          * @return true if second object is a UField and its properties are the same
          */
@@ -182,10 +281,10 @@ interface UField {
 
         /**
          * Creates a new field, taking parameters from the given one and setting filter flag to false
-         * @return new field, basing on a given one with hasFilter() set to true
+         * @return new field, basing on a given one with hasFilter() set to false
          */
         fun fieldOf(f: UField): UField {
-            if (f.hasFilter()) {
+            if (!f.hasFilter()) {
                 return f
             }
             return ImmutableField(f.internalName(), f.externalName(), f.isPublic(), false, f.description())
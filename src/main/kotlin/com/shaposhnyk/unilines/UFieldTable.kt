@@ -0,0 +1,73 @@
+package com.shaposhnyk.unilines
+
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Per-field side table, backed by an array indexed by interned field ids.
+ * Fields which are not interned yet are interned on access (see UField.intern()), at the cost of a lookup
+ */
+class UFieldTable<V> {
+    @Volatile
+    private var values = AtomicReferenceArray<Any?>(64)
+
+    /**
+     * @return value associated with the field, or null
+     */
+    operator fun get(f: UField): V? {
+        val id = idOf(f)
+        val current = values
+        @Suppress("UNCHECKED_CAST")
+        return if (id < current.length()) current.get(id) as V? else null
+    }
+
+    /**
+     * Associates a value with the field
+     */
+    operator fun set(f: UField, value: V) {
+        val id = idOf(f)
+        synchronized(this) {
+            ensureCapacity(id)
+            values.set(id, value)
+        }
+    }
+
+    /**
+     * @return value associated with the field, computing it if absent
+     */
+    fun computeIfAbsent(f: UField, fx: (UField) -> V): V {
+        val found = get(f)
+        if (found != null) {
+            return found
+        }
+        synchronized(this) {
+            return get(f) ?: fx(UField.intern(f)).also { set(f, it) }
+        }
+    }
+
+    /**
+     * @return all fields with an associated value, ordered by field id
+     */
+    fun entries(): List<Pair<UField, V>> {
+        val current = values
+        @Suppress("UNCHECKED_CAST")
+        return (0 until current.length())
+                .filter { current.get(it) != null }
+                .map { Pair(UField.byId(it), current.get(it) as V) }
+    }
+
+    private fun idOf(f: UField): Int {
+        val id = f.id()
+        return if (id >= 0) id else UField.intern(f).id()
+    }
+
+    private fun ensureCapacity(id: Int) {
+        val current = values
+        if (id >= current.length()) {
+            val grown = AtomicReferenceArray<Any?>(Math.max(2 * current.length(), id + 1))
+            for (i in 0 until current.length()) {
+                grown.set(i, current.get(i))
+            }
+            values = grown
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.shaposhnyk.unilines.builders
 
 import com.shaposhnyk.unilines.UBiPipeline
+import java.util.concurrent.ExecutorService
 import java.util.function.Function
 import java.util.function.Predicate
 
@@ -23,6 +24,12 @@ interface ExtractingBuilder<T, C, R> : UBiPipeline<T, C> {
         return postFilter { r -> predicate.test(r) }
     }
 
+    /**
+     * Creates a new ConverterBuilder, whose stacked post-filters (current and added later) are evaluated in an order
+     * adapted at runtime, most selective per unit of cost first. Predicates must be side-effect free
+     */
+    fun adaptivePostFilters(): ExtractingBuilder<T, C, R>
+
     /**
      * Decorates value extracted by extractor, without changing its type
      */
@@ -34,6 +41,24 @@ interface ExtractingBuilder<T, C, R> : UBiPipeline<T, C> {
 
     fun withExtractionErrorHandler(errorHandler: (Exception, T?) -> R?): ExtractingBuilder<T, C, R>
 
+    /**
+     * Creates a new ConverterBuilder, which extractor is guarded by a circuit breaker of its own.
+     * While the breaker is open, the extractor is not called, and the fallback value is written instead
+     */
+    fun withExtractionCircuitBreaker(breakers: UCCircuitBreakers, fallback: R?): ExtractingBuilder<T, C, R>
+
+    /**
+     * Creates a new ConverterBuilder, which extractor runs on the executor within a time budget,
+     * or within what is left of the current deadline if it is shorter.
+     * An overrunning extractor is abandoned, and the fallback value is written instead (omitted if null)
+     * @param executor - bounded helper pool, see UCDeadline.helperPool()
+     */
+    fun withDeadline(budgetMillis: Long, executor: ExecutorService, fallback: R?): ExtractingBuilder<T, C, R>
+
+    fun withDeadline(budgetMillis: Long, executor: ExecutorService): ExtractingBuilder<T, C, R> {
+        return withDeadline(budgetMillis, executor, null)
+    }
+
     fun silenceExtractionErrors(): ExtractingBuilder<T, C, R> {
         return withExtractionErrorHandler { _, _ -> null }
     }
@@ -1,6 +1,7 @@
 package com.shaposhnyk.unilines.builders
 
 import com.shaposhnyk.unilines.UBiPipeline
+import java.util.function.BiConsumer
 import java.util.function.Predicate
 
 /**
@@ -21,11 +22,34 @@ interface FilteringBuilder<T, C> : UBiPipeline<T, C> {
         return filterS { it: T? -> p.test(it) }
     }
 
+    /**
+     * @return new ConverterBuilder whose stacked filters (current and added later) are evaluated in an order
+     * adapted at runtime, most selective per unit of cost first. Predicates must be side-effect free
+     */
+    fun adaptiveFilters(): FilteringBuilder<T, C>
+
     /**
      * @return new ConverterBuilder with a given exception handler
      */
     fun withErrorHandler(errorHandler: (Exception, T?, C) -> Unit): FilteringBuilder<T, C>
 
+    /**
+     * @return new ConverterBuilder guarded by a circuit breaker of its own, calling the fallback while it is open.
+     * Errors are recorded only if they reach the breaker, so error handlers should be set after it
+     */
+    fun withCircuitBreaker(breakers: UCCircuitBreakers, fallback: (T?, C) -> Unit): FilteringBuilder<T, C>
+
+    /**
+     * @return new ConverterBuilder guarded by a circuit breaker of its own, skipped while it is open
+     */
+    fun withCircuitBreaker(breakers: UCCircuitBreakers): FilteringBuilder<T, C> {
+        return withCircuitBreaker(breakers, { _, _ -> Unit })
+    }
+
+    fun withCircuitBreakerJ(breakers: UCCircuitBreakers, fallback: BiConsumer<T?, C>): FilteringBuilder<T, C> {
+        return withCircuitBreaker(breakers, { t, c -> fallback.accept(t, c) })
+    }
+
     /**
      * @return new ConverterBuilder which silently swallows exceptions
      */
@@ -0,0 +1,252 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import com.shaposhnyk.unilines.UTriConsumer
+import java.util.function.BiConsumer
+import java.util.function.BiFunction
+import java.util.function.Consumer
+import java.util.function.Function
+
+/*
+ * Function adapters used by builders instead of anonymous lambdas.
+ * Being data classes, two adapters wrapping the same references are equal,
+ * so structurally identical pipelines are equal too (see UCInterner).
+ * They implement hot path SAM types too (see UCFunctions), so nodes call them without an extra wrapper
+ */
+
+internal object Identity : (Any?) -> Any?, UCExtractor<Any?, Any?> {
+    override fun invoke(t: Any?): Any? = t
+
+    override fun extract(t: Any?): Any? = t
+
+    @Suppress("UNCHECKED_CAST")
+    fun <T> of(): (T) -> T = this as (T) -> T
+}
+
+/**
+ * first then second
+ */
+@Suppress("UNCHECKED_CAST")
+internal data class Composed<in A, B, out C>(val first: (A) -> B, val second: (B) -> C) : (A) -> C, UCExtractor<A, C> {
+    private val from = UCExtractor.of(first as (A?) -> B?)
+    private val to = UCExtractor.of(second as (B?) -> C?)
+
+    override fun invoke(a: A): C = extract(a) as C
+
+    override fun extract(t: A?): C? = to.extract(from.extract(t))
+}
+
+/**
+ * Conjunction of predicates, in order
+ */
+internal data class AllOf<in T>(val predicates: List<(T) -> Boolean>) : (T) -> Boolean {
+    override fun invoke(t: T): Boolean {
+        for (i in predicates.indices) {
+            if (!predicates[i](t)) return false
+        }
+        return true
+    }
+}
+
+/**
+ * Items of the objects accepted by the guard, rejected objects having none
+ */
+internal data class GuardedItems<in T, out X>(val guard: (T?) -> Boolean, val items: (T?) -> Iterable<X>) : (T?) -> Iterable<X> {
+    override fun invoke(t: T?): Iterable<X> = if (guard(t)) items(t) else emptyList()
+}
+
+/**
+ * Function with a UField bound as its first argument
+ */
+@Suppress("UNCHECKED_CAST")
+internal data class FieldBound<in A, out B>(val f: UField, val fx: (UField, A) -> B) : (A) -> B, UCExtractor<A, B> {
+    override fun invoke(a: A): B = extract(a) as B
+
+    override fun extract(t: A?): B? = fx(f, t as A)
+}
+
+/**
+ * Java function, applied on non-null values only
+ */
+internal data class JFunction<T, R>(val fx: Function<T, R?>) : (T?) -> R?, UCExtractor<T, R> {
+    override fun invoke(t: T?): R? = extract(t)
+
+    override fun extract(t: T?): R? = if (t != null) fx.apply(t) else null
+}
+
+/**
+ * Java bi-function with a UField bound as its first argument, applied on non-null values only
+ */
+internal data class JFieldFunction<T, R>(val f: UField, val fx: BiFunction<UField, T, R?>) : (T?) -> R?, UCExtractor<T, R> {
+    override fun invoke(t: T?): R? = extract(t)
+
+    override fun extract(t: T?): R? = if (t != null) fx.apply(f, t) else null
+}
+
+/**
+ * Java consumer, applied on non-null values only
+ */
+internal data class JWriter<R, C>(val writer: BiConsumer<R, C>) : (R?, C) -> Unit, UCConsumer<R, C>, UCWriter<R, C> {
+    override fun invoke(r: R?, c: C) = write(r, c)
+
+    override fun accept(t: R?, c: C) = write(t, c)
+
+    override fun write(value: R?, c: C) {
+        if (value != null) writer.accept(value, c)
+    }
+}
+
+/**
+ * Java field consumer, applied on non-null values only
+ */
+internal data class JFieldWriter<R, C>(val f: UField, val writer: UTriConsumer<UField, R, C>)
+    : (R?, C) -> Unit, UCConsumer<R, C>, UCWriter<R, C> {
+    override fun invoke(r: R?, c: C) = write(r, c)
+
+    override fun accept(t: R?, c: C) = write(t, c)
+
+    override fun write(value: R?, c: C) {
+        if (value != null) writer.accept(f, value, c)
+    }
+}
+
+/**
+ * Java field consumer, applied on all values
+ */
+internal data class JNullableFieldWriter<R, C>(val f: UField, val writer: UTriConsumer<UField, R?, C>)
+    : (R?, C) -> Unit, UCWriter<R, C> {
+    override fun invoke(r: R?, c: C) = write(r, c)
+
+    override fun write(value: R?, c: C) = writer.accept(f, value, c)
+}
+
+/**
+ * Java context consumer, ignoring source object
+ */
+internal data class JContextConsumer<in T, C>(val fx: Consumer<C>) : (T?, C) -> Unit, UCConsumer<T, C> {
+    override fun invoke(t: T?, c: C) = accept(t, c)
+
+    override fun accept(t: T?, c: C) = fx.accept(c)
+}
+
+/**
+ * Writer invoked only if value matches the predicate
+ */
+internal data class PostFiltered<R, in C>(val predicate: (R?) -> Boolean, val writer: (R?, C) -> Unit)
+    : (R?, C) -> Unit, UCWriter<R, C> {
+    private val target = UCWriter.of(writer)
+
+    override fun invoke(r: R?, c: C) = write(r, c)
+
+    override fun write(value: R?, c: C) {
+        if (predicate(value)) target.write(value, c)
+    }
+}
+
+/**
+ * Writer recording written values into the current fingerprint (see UCFingerprint), once the writer accepted them
+ */
+internal data class Recorded<R, in C>(val f: UField, val writer: (R?, C) -> Unit) : (R?, C) -> Unit, UCWriter<R, C> {
+    private val target = UCWriter.of(writer)
+
+    override fun invoke(r: R?, c: C) = write(r, c)
+
+    override fun write(value: R?, c: C) {
+        target.write(value, c)
+        UCFingerprint.record(f, value)
+    }
+
+    companion object {
+        /**
+         * @return writer recording the values passing the post-filters of the given writer
+         */
+        @Suppress("UNCHECKED_CAST")
+        fun <R, C> of(f: UField, writer: (R?, C) -> Unit): (R?, C) -> Unit = when (writer) {
+            is PostFiltered<*, *> -> PostFiltered((writer as PostFiltered<R, C>).predicate, of(f, writer.writer))
+            is AdaptivePostFiltered<*, *> -> (writer as AdaptivePostFiltered<R, C>).withWriter(of(f, writer.writer))
+            else -> Recorded(f, writer)
+        }
+    }
+}
+
+/**
+ * Consumer invoked only if input and context match the predicate
+ */
+internal data class Filtered<T, C>(val predicate: (T?, C) -> Boolean, val consumer: (T?, C) -> Unit)
+    : (T?, C) -> Unit, UCConsumer<T, C> {
+    private val target = UCConsumer.of(consumer)
+
+    override fun invoke(t: T?, c: C) = accept(t, c)
+
+    override fun accept(t: T?, c: C) {
+        if (predicate(t, c)) target.accept(t, c)
+    }
+}
+
+/**
+ * Extractor and writer of a field fused into a consumer, so wrapping an extracting field adds no pipeline level
+ */
+internal data class ExtractingWriter<T, C, R>(val f: UField, val extractor: (T?) -> R?, val writer: (R?, C) -> Unit)
+    : (T?, C) -> Unit, UCConsumer<T, C> {
+    private val from = UCExtractor.of(extractor)
+    private val to = UCWriter.of(writer)
+
+    override fun invoke(t: T?, c: C) = accept(t, c)
+
+    override fun accept(t: T?, c: C) {
+        to.write(from.extract(t), c)
+    }
+}
+
+/**
+ * @return same consumer, extracting writers within it recording written values into the current fingerprint
+ */
+@Suppress("UNCHECKED_CAST")
+internal fun <T, C> recording(consumer: (T?, C) -> Unit): (T?, C) -> Unit = when (consumer) {
+    is ExtractingWriter<*, *, *> -> (consumer as ExtractingWriter<T, C, Any?>).let { it.copy(writer = Recorded.of(it.f, it.writer)) }
+    is Filtered<*, *> -> (consumer as Filtered<T, C>).let { it.copy(consumer = recording(it.consumer)) }
+    is AdaptiveFiltered<*, *> -> (consumer as AdaptiveFiltered<T, C>).let { it.withConsumer(recording(it.consumer)) }
+    is ErrorHandling<*, *> -> (consumer as ErrorHandling<T, C>).let { it.copy(consumer = recording(it.consumer)) }
+    is CircuitBreaking<*, *> -> (consumer as CircuitBreaking<T, C>).let { it.copy(consumer = recording(it.consumer)) }
+    else -> consumer
+}
+
+/**
+ * Consumer with an exception handler
+ */
+internal data class ErrorHandling<T, C>(val consumer: (T?, C) -> Unit,
+                                        val errorHandler: (Exception, T?, C) -> Unit) : (T?, C) -> Unit, UCConsumer<T, C> {
+    private val target = UCConsumer.of(consumer)
+
+    override fun invoke(t: T?, c: C) = accept(t, c)
+
+    override fun accept(t: T?, c: C) {
+        try {
+            target.accept(t, c)
+        } catch (e: UCCancelledException) {
+            throw e
+        } catch (e: Exception) {
+            errorHandler(e, t, c)
+        }
+    }
+}
+
+/**
+ * Extractor with an exception handler
+ */
+internal data class ExtractionErrorHandling<T, R>(val extractor: (T?) -> R?,
+                                                  val errorHandler: (Exception, T?) -> R?) : (T?) -> R?, UCExtractor<T, R> {
+    private val target = UCExtractor.of(extractor)
+
+    override fun invoke(t: T?): R? = extract(t)
+
+    override fun extract(t: T?): R? {
+        return try {
+            target.extract(t)
+        } catch (e: UCCancelledException) {
+            throw e
+        } catch (e: Exception) {
+            errorHandler(e, t)
+        }
+    }
+}
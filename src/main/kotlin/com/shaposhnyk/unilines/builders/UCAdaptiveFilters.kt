@@ -0,0 +1,244 @@
+package com.shaposhnyk.unilines.builders
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Conjunction of side-effect free predicates, evaluated in an order adapted at runtime:
+ * predicates rejecting most per unit of cost are evaluated first.
+ * One call out of SAMPLE_RATE evaluates every predicate in the original order, measuring its rejections and cost;
+ * every REORDER_SAMPLES samples, the order is recomputed and republished (statistics being halved, so it follows
+ * changes of data). Results are those of the original order: if a predicate fails out of the original order
+ * (e.g. relying on a null check evaluated before it), the call is evaluated again in the original order.
+ * Predicates seen failing in the original order are pinned to their position, so that no predicate following them
+ * in that order can reject a call which fails in it
+ * @param predicates - predicates in the original order
+ */
+internal class AdaptiveOrder<in A, in B>(private val predicates: List<(A, B) -> Boolean>) {
+    private val original = IntArray(predicates.size, { it })
+
+    @Volatile
+    private var order = original
+
+    // plain counter, lost increments only shift sampling
+    private var calls = 0
+
+    private val rejections = AtomicLongArray(predicates.size)
+    private val evaluations = AtomicLongArray(predicates.size)
+    private val nanos = AtomicLongArray(predicates.size)
+    private val samples = AtomicInteger()
+    private val failing = AtomicIntegerArray(predicates.size)
+
+    /**
+     * @return order of evaluation (indexes of predicates)
+     */
+    fun order(): List<Int> = order.toList()
+
+    fun test(a: A, b: B): Boolean {
+        calls += 1
+        if (calls and (SAMPLE_RATE - 1) == 0) {
+            return sample(a, b)
+        }
+        val current = order
+        try {
+            return testIn(current, a, b)
+        } catch (e: RuntimeException) {
+            if (current === original) throw e
+            try {
+                return testIn(original, a, b)
+            } catch (failure: RuntimeException) {
+                // failing in the original order too: predicates moved before the failing one must not reject first
+                order = arrange(current.toList())
+                throw failure
+            }
+        }
+    }
+
+    private fun testIn(indexes: IntArray, a: A, b: B): Boolean {
+        for (i in indexes) {
+            val passed = try {
+                predicates[i](a, b)
+            } catch (e: RuntimeException) {
+                if (indexes === original) {
+                    failing.set(i, 1)
+                }
+                throw e
+            }
+            if (!passed) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Evaluates all the predicates in the original order, recording their statistics
+     */
+    private fun sample(a: A, b: B): Boolean {
+        var result = true
+        for (i in predicates.indices) {
+            val started = System.nanoTime()
+            val passed = try {
+                predicates[i](a, b)
+            } catch (e: RuntimeException) {
+                // not evaluated in the original order once a predicate rejected
+                if (!result) continue
+                failing.set(i, 1)
+                throw e
+            }
+            nanos.addAndGet(i, System.nanoTime() - started)
+            evaluations.incrementAndGet(i)
+            if (!passed) {
+                rejections.incrementAndGet(i)
+                result = false
+            }
+        }
+        if (samples.incrementAndGet() % REORDER_SAMPLES == 0) {
+            reorder()
+        }
+        return result
+    }
+
+    private fun reorder() {
+        val scores = DoubleArray(predicates.size)
+        for (i in predicates.indices) {
+            val n = evaluations.get(i)
+            if (n > 0) {
+                val rejectionRate = rejections.get(i).toDouble() / n
+                val cost = Math.max(1.0, nanos.get(i).toDouble() / n)
+                scores[i] = rejectionRate / cost
+            }
+            rejections.set(i, rejections.get(i) / 2)
+            evaluations.set(i, evaluations.get(i) / 2)
+            nanos.set(i, nanos.get(i) / 2)
+        }
+        // stable: equal scores keep the original order
+        order = arrange(predicates.indices.sortedByDescending { scores[it] })
+    }
+
+    /**
+     * @param ranked - indexes of predicates, preferred first
+     * @return order of evaluation: predicates seen failing in the original order keep their position,
+     * the ones between them being evaluated in ranked order
+     */
+    private fun arrange(ranked: List<Int>): IntArray {
+        val rank = IntArray(predicates.size)
+        ranked.forEachIndexed { r, i -> rank[i] = r }
+        val arranged = IntArray(predicates.size)
+        var from = 0
+        for (i in 0..predicates.size) {
+            if (i == predicates.size || failing.get(i) != 0) {
+                (from until i).sortedBy { rank[it] }.forEachIndexed { n, j -> arranged[from + n] = j }
+                if (i < predicates.size) {
+                    arranged[i] = i
+                }
+                from = i + 1
+            }
+        }
+        return if (arranged.contentEquals(original)) original else arranged
+    }
+
+    companion object {
+        const val SAMPLE_RATE = 64
+        const val REORDER_SAMPLES = 16
+    }
+}
+
+/**
+ * Consumer invoked only if input and context match all the predicates, evaluated in an adaptive order
+ * @param predicates - predicates in the order of stacked filters: last added first
+ */
+internal data class AdaptiveFiltered<T, C>(val predicates: List<(T?, C) -> Boolean>, val consumer: (T?, C) -> Unit)
+    : (T?, C) -> Unit, UCConsumer<T, C> {
+    private val target = UCConsumer.of(consumer)
+    private var adaptive = AdaptiveOrder(predicates)
+
+    override fun invoke(t: T?, c: C) = accept(t, c)
+
+    override fun accept(t: T?, c: C) {
+        if (adaptive.test(t, c)) target.accept(t, c)
+    }
+
+    internal fun order(): List<Int> = adaptive.order()
+
+    fun with(predicate: (T?, C) -> Boolean): AdaptiveFiltered<T, C> = AdaptiveFiltered(listOf(predicate) + predicates, consumer)
+
+    /**
+     * @return same filters in front of another consumer, sharing their adaptive order
+     */
+    internal fun withConsumer(newConsumer: (T?, C) -> Unit): AdaptiveFiltered<T, C> {
+        val copy = AdaptiveFiltered<T, C>(predicates, newConsumer)
+        copy.adaptive = adaptive
+        return copy
+    }
+
+    companion object {
+        /**
+         * @return consumer with stacked filters of the given consumer (see Filtered) evaluated in an adaptive order
+         */
+        @Suppress("UNCHECKED_CAST")
+        fun <T, C> of(consumer: (T?, C) -> Unit): AdaptiveFiltered<T, C> {
+            if (consumer is AdaptiveFiltered<*, *>) {
+                return consumer as AdaptiveFiltered<T, C>
+            }
+            val stacked = mutableListOf<(T?, C) -> Boolean>()
+            var inner = consumer
+            while (inner is Filtered<*, *>) {
+                val filtered = inner as Filtered<T, C>
+                stacked.add(filtered.predicate)
+                inner = filtered.consumer
+            }
+            return AdaptiveFiltered(stacked, inner)
+        }
+    }
+}
+
+/**
+ * Writer invoked only if value matches all the predicates, evaluated in an adaptive order
+ * @param predicates - predicates in the order of stacked post-filters: last added first
+ */
+internal data class AdaptivePostFiltered<R, in C>(val predicates: List<(R?) -> Boolean>, val writer: (R?, C) -> Unit)
+    : (R?, C) -> Unit, UCWriter<R, C> {
+    private val target = UCWriter.of(writer)
+    private var adaptive = AdaptiveOrder(predicates.map { p -> { r: R?, _: Unit -> p(r) } })
+
+    override fun invoke(r: R?, c: C) = write(r, c)
+
+    override fun write(value: R?, c: C) {
+        if (adaptive.test(value, Unit)) target.write(value, c)
+    }
+
+    internal fun order(): List<Int> = adaptive.order()
+
+    fun with(predicate: (R?) -> Boolean): AdaptivePostFiltered<R, C> = AdaptivePostFiltered(listOf(predicate) + predicates, writer)
+
+    /**
+     * @return same post-filters in front of another writer, sharing their adaptive order
+     */
+    internal fun withWriter(newWriter: (R?, @UnsafeVariance C) -> Unit): AdaptivePostFiltered<R, C> {
+        val copy = AdaptivePostFiltered<R, C>(predicates, newWriter)
+        copy.adaptive = adaptive
+        return copy
+    }
+
+    companion object {
+        /**
+         * @return writer with stacked post-filters of the given writer (see PostFiltered) evaluated in an adaptive order
+         */
+        @Suppress("UNCHECKED_CAST")
+        fun <R, C> of(writer: (R?, C) -> Unit): AdaptivePostFiltered<R, C> {
+            if (writer is AdaptivePostFiltered<*, *>) {
+                return writer as AdaptivePostFiltered<R, C>
+            }
+            val stacked = mutableListOf<(R?) -> Boolean>()
+            var inner = writer
+            while (inner is PostFiltered<*, *>) {
+                val filtered = inner as PostFiltered<R, C>
+                stacked.add(filtered.predicate)
+                inner = filtered.writer
+            }
+            return AdaptivePostFiltered(stacked, inner)
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import java.util.function.Function
+import java.util.function.ToDoubleFunction
+import java.util.function.ToLongFunction
+
+/**
+ * Aggregated values of a group of items
+ */
+class UCGroup<out K> internal constructor(val key: K,
+                                          private val reducers: List<UCAggregationBuilder.Reducer<*>>,
+                                          private val state: UCAggregationBuilder.State) {
+    /**
+     * @return names of the aggregated values
+     */
+    fun names(): List<String> = reducers.map { it.name }
+
+    /**
+     * @return aggregated value (Long or Double), or null if there is no such value
+     */
+    operator fun get(name: String): Any? {
+        val reducer = reducers.firstOrNull { it.name == name } ?: return null
+        return when (reducer.kind) {
+            Kind.SUM_DOUBLE -> state.doubles[reducer.slot]
+            Kind.DISTINCT -> state.sketches[reducer.slot].estimate()
+            else -> state.longs[reducer.slot]
+        }
+    }
+
+    fun getLong(name: String): Long = (get(name) as? Number)?.toLong()
+            ?: throw IllegalArgumentException("No aggregated value $name")
+
+    fun getDouble(name: String): Double = (get(name) as? Number)?.toDouble()
+            ?: throw IllegalArgumentException("No aggregated value $name")
+
+    override fun toString(): String = "UCGroup($key, ${names().map { it + "=" + get(it) }})"
+
+    internal enum class Kind { COUNT, SUM_LONG, MIN_LONG, MAX_LONG, SUM_DOUBLE, DISTINCT }
+}
+
+/**
+ * Group-by stage of a flatMap: items are grouped by key and reduced incrementally into primitive accumulators,
+ * without being fed to any field. Then one UCGroup per key (in order of first appearance)
+ * is fed to the fields of the flatMap built by aggregate()
+ */
+data class UCAggregationBuilder<in T_IN, C_IN, T, C_OUT, K>(
+        private val f: UField,
+        private val sFx: (T_IN?) -> Iterable<T>,
+        private val ctxFx: (C_IN) -> C_OUT,
+        private val budgetMillis: Long,
+        private val keyFx: (T) -> K,
+        private val reducers: List<Reducer<T>> = listOf()
+) {
+    /**
+     * Reducer definition, updating the slot of an accumulator array
+     */
+    data class Reducer<in T> internal constructor(val name: String,
+                                                  internal val kind: UCGroup.Kind,
+                                                  internal val slot: Int,
+                                                  internal val longFx: ToLongFunction<in T>? = null,
+                                                  internal val doubleFx: ToDoubleFunction<in T>? = null,
+                                                  internal val valueFx: ((T) -> Any?)? = null,
+                                                  internal val precision: Int = 0)
+
+    /**
+     * Accumulators of a group
+     */
+    class State internal constructor(internal val longs: LongArray,
+                                     internal val doubles: DoubleArray,
+                                     internal val sketches: Array<UCHyperLogLog>)
+
+    /**
+     * Number of items
+     */
+    fun count(name: String) = reduce(name, UCGroup.Kind.COUNT)
+
+    /*
+     * Values are read through ToLongFunction and ToDoubleFunction, so they are never boxed
+     */
+
+    inline fun sum(name: String, crossinline fx: (T) -> Long) = sumJ(name, ToLongFunction { fx(it) })
+
+    fun sumJ(name: String, fx: ToLongFunction<T>) = reduce(name, UCGroup.Kind.SUM_LONG, longFx = fx)
+
+    inline fun sumDouble(name: String, crossinline fx: (T) -> Double) = sumDoubleJ(name, ToDoubleFunction { fx(it) })
+
+    fun sumDoubleJ(name: String, fx: ToDoubleFunction<T>) = reduce(name, UCGroup.Kind.SUM_DOUBLE, doubleFx = fx)
+
+    inline fun min(name: String, crossinline fx: (T) -> Long) = minJ(name, ToLongFunction { fx(it) })
+
+    fun minJ(name: String, fx: ToLongFunction<T>) = reduce(name, UCGroup.Kind.MIN_LONG, longFx = fx)
+
+    inline fun max(name: String, crossinline fx: (T) -> Long) = maxJ(name, ToLongFunction { fx(it) })
+
+    fun maxJ(name: String, fx: ToLongFunction<T>) = reduce(name, UCGroup.Kind.MAX_LONG, longFx = fx)
+
+    /**
+     * Approximate number of distinct values, estimated with a HyperLogLog sketch per group
+     */
+    @JvmOverloads
+    fun distinct(name: String, fx: (T) -> Any?, precision: Int = 12) =
+            reduce(name, UCGroup.Kind.DISTINCT, valueFx = fx, precision = precision)
+
+    @JvmOverloads
+    fun distinctJ(name: String, fx: Function<T, Any?>, precision: Int = 12) = distinct(name, fx::apply, precision)
+
+    /**
+     * @return flatMap builder of groups, accepting fields of UCGroup
+     */
+    fun aggregate(): UCObjects.UCHFlatBuilder<T_IN, C_IN, UCGroup<K>, C_OUT> {
+        return UCObjects.UCHFlatBuilder(f, Composed(sFx, Aggregated(keyFx, reducers)), ctxFx, budgetMillis = budgetMillis)
+    }
+
+    private fun reduce(name: String, kind: UCGroup.Kind,
+                       longFx: ToLongFunction<T>? = null,
+                       doubleFx: ToDoubleFunction<T>? = null,
+                       valueFx: ((T) -> Any?)? = null,
+                       precision: Int = 0): UCAggregationBuilder<T_IN, C_IN, T, C_OUT, K> {
+        if (reducers.any { it.name == name }) {
+            throw IllegalArgumentException("Duplicate aggregated value $name")
+        }
+        val slot = reducers.count { slotsOf(it.kind) == slotsOf(kind) }
+        return withReducers(reducers + Reducer(name, kind, slot, longFx, doubleFx, valueFx, precision))
+    }
+
+    private fun withReducers(newReducers: List<Reducer<T>>): UCAggregationBuilder<T_IN, C_IN, T, C_OUT, K> {
+        return copy(reducers = newReducers)
+    }
+}
+
+/**
+ * @return accumulator array used by the kind of reducer: 0 - longs, 1 - doubles, 2 - sketches
+ */
+private fun slotsOf(kind: UCGroup.Kind): Int = when (kind) {
+    UCGroup.Kind.SUM_DOUBLE -> 1
+    UCGroup.Kind.DISTINCT -> 2
+    else -> 0
+}
+
+/**
+ * Groups and reduces items, then produces groups in order of first appearance
+ */
+internal data class Aggregated<T, K>(val keyFx: (T) -> K, val reducers: List<UCAggregationBuilder.Reducer<T>>)
+    : (Iterable<T>) -> Iterable<UCGroup<K>> {
+    private val longs = reducers.count { slotsOf(it.kind) == 0 }
+    private val doubles = reducers.count { slotsOf(it.kind) == 1 }
+    private val sketches = reducers.filter { slotsOf(it.kind) == 2 }.map { it.precision }
+
+    override fun invoke(items: Iterable<T>): Iterable<UCGroup<K>> = object : Iterable<UCGroup<K>> {
+        override fun iterator(): Iterator<UCGroup<K>> {
+            val groups = LinkedHashMap<K, UCAggregationBuilder.State>()
+            drain(items) { item -> update(groups.getOrPut(keyFx(item), { newState() }), item) }
+            return groups.entries.map { UCGroup(it.key, reducers, it.value) }.iterator()
+        }
+    }
+
+    private fun newState(): UCAggregationBuilder.State {
+        val state = UCAggregationBuilder.State(LongArray(longs), DoubleArray(doubles),
+                Array(sketches.size, { UCHyperLogLog(sketches[it]) }))
+        for (r in reducers) {
+            when (r.kind) {
+                UCGroup.Kind.MIN_LONG -> state.longs[r.slot] = Long.MAX_VALUE
+                UCGroup.Kind.MAX_LONG -> state.longs[r.slot] = Long.MIN_VALUE
+                else -> Unit
+            }
+        }
+        return state
+    }
+
+    private fun update(state: UCAggregationBuilder.State, item: T) {
+        for (r in reducers) {
+            val slot = r.slot
+            when (r.kind) {
+                UCGroup.Kind.COUNT -> state.longs[slot] = state.longs[slot] + 1
+                UCGroup.Kind.SUM_LONG -> state.longs[slot] = state.longs[slot] + r.longFx!!.applyAsLong(item)
+                UCGroup.Kind.MIN_LONG -> state.longs[slot] = Math.min(state.longs[slot], r.longFx!!.applyAsLong(item))
+                UCGroup.Kind.MAX_LONG -> state.longs[slot] = Math.max(state.longs[slot], r.longFx!!.applyAsLong(item))
+                UCGroup.Kind.SUM_DOUBLE -> state.doubles[slot] = state.doubles[slot] + r.doubleFx!!.applyAsDouble(item)
+                UCGroup.Kind.DISTINCT -> state.sketches[slot].add(r.valueFx!!(item))
+            }
+        }
+    }
+}
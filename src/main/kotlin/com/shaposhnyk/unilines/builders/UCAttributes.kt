@@ -0,0 +1,195 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UBiPipeline
+import com.shaposhnyk.unilines.UField
+import java.util.function.BiFunction
+import java.util.function.Function
+import javax.naming.NamingException
+import javax.naming.directory.Attributes
+import javax.naming.directory.SearchResult
+
+/**
+ * Source adapter of attribute-bag sources (LDAP entries, maps, JCR-like nodes...): reads an attribute by its name.
+ * Fields created with UCField.attributeOf() read the attribute named by their internalName(),
+ * so the attributes needed by a pipeline are known (see UCAttributes.requiredBy())
+ */
+interface UCAttributeSource<in S> {
+    /**
+     * @return value of the attribute, or null if the source has no such attribute
+     */
+    fun get(source: S, name: String): Any?
+}
+
+/**
+ * Common attribute sources, and the analyzer of attributes needed by pipelines
+ */
+object UCAttributes {
+
+    /**
+     * Attributes needed by a pipeline
+     * @param attributes - names of attributes read by attribute fields, in tree order
+     * @param opaqueFields - fields reading the source with custom functions, which may need other attributes
+     */
+    data class Report(val attributes: Set<String>, val opaqueFields: List<UField>) {
+        /**
+         * @return true if all the attributes read by the pipeline are known
+         */
+        fun isExact(): Boolean = opaqueFields.isEmpty()
+
+        /**
+         * @return attribute names, e.g. for SearchControls.setReturningAttributes()
+         */
+        fun toArray(): Array<String> = attributes.toTypedArray()
+    }
+
+    /**
+     * JNDI attributes: single value of single-valued attributes, list of values of multi-valued ones
+     */
+    @JvmStatic
+    fun jndi(): UCAttributeSource<Attributes> = JndiAttributeSource
+
+    /**
+     * Attributes of JNDI search results
+     */
+    @JvmStatic
+    fun searchResult(): UCAttributeSource<SearchResult> = nested(jndi(), { sr: SearchResult -> sr.attributes })
+
+    @JvmStatic
+    fun map(): UCAttributeSource<Map<String, *>> = MapAttributeSource
+
+    /**
+     * @return attribute source reading attributes with the function (e.g. { node, name -> node.getProperty(name) })
+     */
+    @JvmStatic
+    fun <S> of(fx: (S, String) -> Any?): UCAttributeSource<S> = FunctionAttributeSource(fx)
+
+    @JvmStatic
+    fun <S> ofJ(fx: BiFunction<S, String, Any?>): UCAttributeSource<S> = of(fx::apply)
+
+    /**
+     * @return attribute source of objects holding an attribute bag
+     */
+    @JvmStatic
+    fun <X, S> nested(source: UCAttributeSource<S>, fx: (X) -> S?): UCAttributeSource<X> = NestedAttributeSource(source, fx)
+
+    @JvmStatic
+    fun <X, S> nestedJ(source: UCAttributeSource<S>, fx: Function<X, S?>): UCAttributeSource<X> = nested(source, fx::apply)
+
+    /**
+     * Walks the pipeline, collecting attributes read by attribute fields, looking through
+     * decorators, error handlers, circuit breakers and deadlines of their extractors.
+     * Fields of a node mapping its source object (mapS(), ofSourceMap(), flatMap()...) read the mapped object,
+     * not the attribute bag: the node reports what its mapping reads, or is opaque, and its fields are not walked.
+     * Guards of a node report the attributes read by guard(field, predicate), other guards make the node opaque
+     * @return attributes needed by the pipeline
+     */
+    @JvmStatic
+    fun requiredBy(pipeline: UBiPipeline<*, *>): Report {
+        val attributes = linkedSetOf<String>()
+        val opaque = mutableListOf<UField>()
+        collect(pipeline, attributes, opaque)
+        return Report(attributes, opaque)
+    }
+
+    private fun collect(pipeline: UBiPipeline<*, *>, attributes: MutableSet<String>, opaque: MutableList<UField>) {
+        val source = sourceOf(pipeline)
+        if (source !== Identity) {
+            val read = readBy(source)
+            if (read != null) attributes.addAll(read) else opaque.add(pipeline)
+            return
+        }
+        val guard = guardOf(pipeline)
+        if (guard != null) {
+            val read = readBy(guard)
+            if (read != null) attributes.addAll(read) else opaque.add(pipeline)
+        }
+        val fields = pipeline.fields()
+        if (!fields.isEmpty()) {
+            fields.forEach { collect(it, attributes, opaque) }
+            return
+        }
+        val read = when (pipeline) {
+            is ExtractingBuilder<*, *, *> -> readBy(pipeline.extractor())
+            is UCField.Simple<*, *> -> readBy(pipeline.consumer)
+            is UCField.Batching<*, *, *, *> -> readBy(pipeline.keyFx)
+            else -> null
+        }
+        if (read != null) attributes.addAll(read) else opaque.add(pipeline)
+    }
+
+    /**
+     * @return function mapping the source object of the node before its fields, Identity if none, null if unknown
+     */
+    private fun sourceOf(pipeline: UBiPipeline<*, *>): Any? {
+        return when (pipeline) {
+            is UCObjects.ChainingBiPipeline<*, *> -> pipeline.source()
+            is UCObjects.FlatChainingBiPipeline<*, *, *, *> -> pipeline.sFx
+            else -> Identity
+        }
+    }
+
+    /**
+     * @return guard of the fields of the node, null if none
+     */
+    private fun guardOf(pipeline: UBiPipeline<*, *>): Any? {
+        return if (pipeline is UCObjects.ChainingBiPipeline<*, *>) pipeline.guard() else null
+    }
+
+    /**
+     * @return attributes read by the function, or null if unknown
+     */
+    private fun readBy(fx: Any?): Set<String>? {
+        return when (fx) {
+            is AttributeRead<*> -> setOf(fx.name)
+            is AllOf<*> -> fx.predicates.flatMap { readBy(it) ?: return null }.toSet()
+            is GuardedItems<*, *> -> (readBy(fx.guard) ?: return null) + (readBy(fx.items) ?: return null)
+            is Composed<*, *, *> -> if (fx.first === Identity) readBy(fx.second) else readBy(fx.first)
+            is ExtractionErrorHandling<*, *> -> readBy(fx.extractor)
+            is CircuitBreakingExtractor<*, *> -> readBy(fx.extractor)
+            is DeadlineExtractor<*, *> -> readBy(fx.extractor)
+            is ExtractingWriter<*, *, *> -> readBy(fx.extractor)
+            is ErrorHandling<*, *> -> readBy(fx.consumer)
+            is CircuitBreaking<*, *> -> readBy(fx.consumer)
+            is JContextConsumer<*, *> -> setOf()
+            else -> null
+        }
+    }
+}
+
+/**
+ * Extractor of an attribute by its name
+ */
+internal data class AttributeRead<T>(val source: UCAttributeSource<T>, val name: String) : (T?) -> Any?, UCExtractor<T, Any?> {
+    override fun invoke(t: T?): Any? = extract(t)
+
+    override fun extract(t: T?): Any? = if (t != null) source.get(t, name) else null
+}
+
+private object JndiAttributeSource : UCAttributeSource<Attributes> {
+    override fun get(source: Attributes, name: String): Any? {
+        val attribute = source.get(name) ?: return null
+        try {
+            if (attribute.size() <= 1) {
+                return attribute.get()
+            }
+            return (0 until attribute.size()).map { attribute.get(it) }
+        } catch (e: NamingException) {
+            throw IllegalStateException("Cannot read attribute $name", e)
+        }
+    }
+}
+
+private object MapAttributeSource : UCAttributeSource<Map<String, *>> {
+    override fun get(source: Map<String, *>, name: String): Any? = source[name]
+}
+
+private data class FunctionAttributeSource<in S>(val fx: (S, String) -> Any?) : UCAttributeSource<S> {
+    override fun get(source: S, name: String): Any? = fx(source, name)
+}
+
+private data class NestedAttributeSource<in X, S>(val source: UCAttributeSource<S>, val fx: (X) -> S?) : UCAttributeSource<X> {
+    override fun get(source: X, name: String): Any? {
+        val bag = fx(source) ?: return null
+        return this.source.get(bag, name)
+    }
+}
@@ -0,0 +1,102 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UBiPipeline
+import java.util.*
+
+/**
+ * Batching window, opened by a flatMap for the duration of its consume.
+ * Batching fields register their pending items here, and the flatMap flushes them once all the items are fed.
+ * It also holds a per-request lookup cache of every batching field
+ */
+internal class UCBatches private constructor(private val previous: UCBatches?) {
+
+    /**
+     * Pending items and lookup cache of a batching field
+     */
+    class State<K, V, C> {
+        val pending = mutableListOf<Pair<K?, C>>()
+        val cache = HashMap<K, V?>()
+    }
+
+    private val states = IdentityHashMap<UCField.Batching<*, *, *, *>, State<*, *, *>>()
+    private val fields = mutableListOf<UCField.Batching<*, *, *, *>>()
+
+    /**
+     * @return state of the field. States are shared by the fields of parallel objects, and are used under their lock
+     */
+    @Suppress("UNCHECKED_CAST")
+    @Synchronized
+    fun <K, V, C> stateOf(field: UCField.Batching<*, *, *, *>): State<K, V, C> {
+        return states.getOrPut(field, {
+            fields.add(field)
+            State<K, V, C>()
+        }) as State<K, V, C>
+    }
+
+    /**
+     * Flushes pending items of all the batching fields, in their registration order
+     */
+    fun flush() {
+        synchronized(this) { fields.toList() }.forEach { it.flush(this) }
+    }
+
+    companion object {
+        private val current = ThreadLocal<UCBatches?>()
+
+        /**
+         * @return true if some batching fields are fed by the fields of a flatMap, directly or through object nodes,
+         * so the flatMap has to open a batching window (nested flatMaps open their own)
+         */
+        fun usedBy(fields: List<UBiPipeline<*, *>>): Boolean {
+            return fields.any { f ->
+                when (f) {
+                    is UCField.Batching<*, *, *, *> -> true
+                    is UCObjects.FlatChainingBiPipeline<*, *, *, *> -> false
+                    else -> usedBy(f.fields())
+                }
+            }
+        }
+
+        /**
+         * @return batching window of the innermost flatMap, or null
+         */
+        fun current(): UCBatches? = current.get()
+
+        /**
+         * Executes the block with the given window (possibly null) as the current one,
+         * e.g. in a thread running fields of a parallel object
+         */
+        fun <R> attach(batches: UCBatches?, block: () -> R): R {
+            val enclosing = current.get()
+            if (enclosing === batches) {
+                return block()
+            }
+            set(batches)
+            try {
+                return block()
+            } finally {
+                set(enclosing)
+            }
+        }
+
+        private fun set(batches: UCBatches?) {
+            if (batches != null) current.set(batches) else current.remove()
+        }
+
+        /**
+         * Opens a new batching window, nested in the current one
+         */
+        fun open(): UCBatches {
+            val batches = UCBatches(current.get())
+            current.set(batches)
+            return batches
+        }
+
+        /**
+         * Closes the batching window, restoring the enclosing one
+         */
+        fun close(batches: UCBatches) {
+            set(batches.previous)
+        }
+    }
+}
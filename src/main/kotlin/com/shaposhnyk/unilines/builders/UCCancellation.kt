@@ -0,0 +1,74 @@
+package com.shaposhnyk.unilines.builders
+
+/**
+ * Cooperative cancellation token of a conversion.
+ * Once attached to the current thread, it is checked between sibling fields and between flatMap items.
+ * When cancelled, conversion stops with UCCancelledException, closing streaming sources of flatMaps
+ */
+class UCCancellation {
+    @Volatile
+    private var cancelled = false
+
+    /**
+     * Requests cancellation. Can be called from any thread
+     */
+    fun cancel() {
+        cancelled = true
+    }
+
+    fun isCancelled(): Boolean = cancelled
+
+    /**
+     * Executes the block with this token attached to the current thread
+     */
+    fun <R> attach(block: () -> R): R {
+        armed.on()
+        val enclosing = current.get()
+        current.set(this)
+        try {
+            return block()
+        } finally {
+            if (enclosing != null) current.set(enclosing) else current.remove()
+        }
+    }
+
+    fun attachJ(block: Runnable) {
+        attach({ block.run() })
+    }
+
+    /**
+     * @throws UCCancelledException if cancelled
+     */
+    fun check() {
+        if (cancelled) {
+            throw UCCancelledException()
+        }
+    }
+
+    companion object {
+        private val current = ThreadLocal<UCCancellation?>()
+
+        /**
+         * On once a token was attached. Until then, pipelines do not look for the current token
+         */
+        internal val armed = UCSwitch()
+
+        /**
+         * @return token attached to the current thread, or null
+         */
+        @JvmStatic
+        fun current(): UCCancellation? = if (armed.isOn) current.get() else null
+
+        /**
+         * Executes the block with the given token (possibly null) attached to the current thread
+         */
+        internal fun <R> attach(token: UCCancellation?, block: () -> R): R {
+            return if (token != null) token.attach(block) else block()
+        }
+    }
+}
+
+/**
+ * Thrown when a conversion is cancelled. It has no stack trace, and is never handled by error handlers
+ */
+class UCCancelledException : RuntimeException("Conversion cancelled", null, false, false)
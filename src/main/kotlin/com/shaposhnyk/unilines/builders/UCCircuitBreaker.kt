@@ -0,0 +1,253 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Circuit breaker of a single field.
+ * Tracks failures and slow calls over a window of last calls. Once their rate reaches a threshold,
+ * the breaker opens, and the field is skipped or replaced by a fallback without being called.
+ * After a while, the breaker lets a few probe calls through (half-open), and closes if they succeed.
+ * It takes no lock: states are swapped atomically, and outcomes are counted in a ring of atomic slots
+ */
+class UCCircuitBreaker(val field: UField, val config: Config, private val clock: () -> Long) {
+
+    enum class State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Circuit breaker settings
+     * @param windowSize - number of last calls used to compute rates
+     * @param minimumCalls - number of calls needed before the breaker can open
+     * @param failureRateThreshold - failure rate (0..1) opening the breaker
+     * @param slowCallMillis - duration above which a call is slow
+     * @param slowCallRateThreshold - slow call rate (0..1) opening the breaker
+     * @param openMillis - time the breaker stays open before letting probes through
+     * @param halfOpenProbes - number of successful probes needed to close the breaker
+     */
+    data class Config(val windowSize: Int = 20,
+                      val minimumCalls: Int = 10,
+                      val failureRateThreshold: Double = 0.5,
+                      val slowCallMillis: Long = Long.MAX_VALUE,
+                      val slowCallRateThreshold: Double = 1.0,
+                      val openMillis: Long = 10000,
+                      val halfOpenProbes: Int = 3) {
+
+        fun withWindow(size: Int, minimum: Int) = copy(windowSize = size, minimumCalls = Math.min(size, minimum))
+
+        fun withFailureRate(threshold: Double) = copy(failureRateThreshold = threshold)
+
+        fun withSlowCalls(millis: Long, threshold: Double) = copy(slowCallMillis = millis, slowCallRateThreshold = threshold)
+
+        fun withOpenDuration(millis: Long) = copy(openMillis = millis)
+
+        fun withHalfOpenProbes(probes: Int) = copy(halfOpenProbes = probes)
+    }
+
+    /**
+     * Point-in-time view of a breaker, for monitoring
+     */
+    data class Snapshot(val field: UField, val state: State, val calls: Int,
+                        val failureRate: Double, val slowCallRate: Double, val rejected: Long)
+
+    /**
+     * State with its counters. Every transition publishes a new phase, with the next generation:
+     * calls are tagged with the generation they started in, so late outcomes of earlier phases are ignored
+     */
+    private class Phase(val state: State, val generation: Long, val openedAt: Long, windowSize: Int,
+                        private val closed: Phase? = null) {
+        // CLOSED: outcomes of the last calls, in a ring
+        val outcomes = if (state == State.CLOSED) AtomicIntegerArray(windowSize) else null
+        val cursor = AtomicLong()
+        val failureCount = AtomicInteger()
+        val slowCount = AtomicInteger()
+
+        // HALF_OPEN: probes
+        val probesStarted = AtomicInteger()
+        val probesSucceeded = AtomicInteger()
+
+        fun calls(windowSize: Int): Int = Math.min(cursor.get(), windowSize.toLong()).toInt()
+
+        fun failureRate(windowSize: Int): Double = rate(failureCount.get(), calls(windowSize))
+
+        fun slowCallRate(windowSize: Int): Double = rate(slowCount.get(), calls(windowSize))
+
+        private fun rate(count: Int, calls: Int) = if (calls == 0) 0.0 else count.toDouble() / calls
+
+        /**
+         * @return this closed phase, or the last one if open or half-open, for monitoring
+         */
+        fun window(): Phase = closed ?: this
+    }
+
+    private val phase = AtomicReference(Phase(State.CLOSED, 0, 0, config.windowSize))
+    private val rejected = AtomicLong()
+
+    /**
+     * @return permit of the call, to be passed to record(), or NOT_PERMITTED if the field should be skipped
+     */
+    fun tryAcquire(): Long {
+        while (true) {
+            val current = phase.get()
+            when (current.state) {
+                State.CLOSED -> return current.generation
+                State.OPEN -> {
+                    if (clock() - current.openedAt < config.openMillis) {
+                        rejected.incrementAndGet()
+                        return NOT_PERMITTED
+                    }
+                    phase.compareAndSet(current, Phase(State.HALF_OPEN, current.generation + 1, 0, config.windowSize,
+                            current.window()))
+                }
+                State.HALF_OPEN -> {
+                    if (current.probesStarted.incrementAndGet() > config.halfOpenProbes) {
+                        rejected.incrementAndGet()
+                        return NOT_PERMITTED
+                    }
+                    return current.generation
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of a permitted call
+     * @param permit - returned by tryAcquire() when the call started
+     */
+    fun record(permit: Long, failed: Boolean, durationMillis: Long) {
+        val current = phase.get()
+        if (current.generation != permit) {
+            return // late outcome of a call started in an earlier phase
+        }
+        val slow = durationMillis > config.slowCallMillis
+        when (current.state) {
+            State.HALF_OPEN -> recordProbe(current, failed || slow)
+            State.CLOSED -> recordCall(current, failed, slow)
+            State.OPEN -> Unit
+        }
+    }
+
+    private fun recordProbe(current: Phase, failed: Boolean) {
+        if (failed) {
+            open(current)
+        } else if (current.probesSucceeded.incrementAndGet() >= config.halfOpenProbes) {
+            phase.compareAndSet(current, Phase(State.CLOSED, current.generation + 1, 0, config.windowSize))
+        }
+    }
+
+    private fun recordCall(current: Phase, failed: Boolean, slow: Boolean) {
+        val outcome = RECORDED or (if (failed) FAILED else 0) or (if (slow) SLOW else 0)
+        val slot = (current.cursor.getAndIncrement() % config.windowSize).toInt()
+        val replaced = current.outcomes!!.getAndSet(slot, outcome)
+        val failures = count(outcome, FAILED) - count(replaced, FAILED)
+        val slowCalls = count(outcome, SLOW) - count(replaced, SLOW)
+        if (failures != 0) current.failureCount.addAndGet(failures)
+        if (slowCalls != 0) current.slowCount.addAndGet(slowCalls)
+
+        if (current.calls(config.windowSize) >= config.minimumCalls
+                && (current.failureRate(config.windowSize) >= config.failureRateThreshold
+                || current.slowCallRate(config.windowSize) >= config.slowCallRateThreshold)) {
+            open(current)
+        }
+    }
+
+    private fun count(outcome: Int, bit: Int) = if (outcome and bit != 0) 1 else 0
+
+    private fun open(current: Phase) {
+        phase.compareAndSet(current, Phase(State.OPEN, current.generation + 1, clock(), config.windowSize, current.window()))
+    }
+
+    fun state(): State = phase.get().state
+
+    fun snapshot(): Snapshot {
+        val current = phase.get()
+        val window = current.window()
+        return Snapshot(field, current.state, window.calls(config.windowSize),
+                window.failureRate(config.windowSize), window.slowCallRate(config.windowSize), rejected.get())
+    }
+
+    internal fun now(): Long = clock()
+
+    /**
+     * Executes the call if permitted, recording its outcome. Inlined, so guarded calls allocate no closure
+     * @return result of the call, or result of rejected() if the call is not permitted
+     */
+    internal inline fun <R> guard(call: () -> R, rejected: () -> R): R {
+        val permit = tryAcquire()
+        if (permit == NOT_PERMITTED) {
+            return rejected()
+        }
+        val start = now()
+        var failed = true
+        try {
+            val result = call()
+            failed = false
+            return result
+        } finally {
+            record(permit, failed, now() - start)
+        }
+    }
+
+    companion object {
+        const val NOT_PERMITTED = -1L
+
+        // bits of a recorded outcome
+        private const val RECORDED = 1
+        private const val FAILED = 2
+        private const val SLOW = 4
+    }
+}
+
+/**
+ * Registry of circuit breakers sharing the same settings, one per guarded field of a pipeline:
+ * fields with the same name in different pipelines have breakers of their own
+ */
+class UCCircuitBreakers @JvmOverloads constructor(
+        val config: UCCircuitBreaker.Config = UCCircuitBreaker.Config(),
+        private val clock: () -> Long = { System.currentTimeMillis() }) {
+
+    private val breakers = CopyOnWriteArrayList<UCCircuitBreaker>()
+
+    /**
+     * @return new breaker of the field, registered for monitoring
+     */
+    fun create(f: UField): UCCircuitBreaker {
+        val breaker = UCCircuitBreaker(f, config, clock)
+        breakers.add(breaker)
+        return breaker
+    }
+
+    /**
+     * @return snapshots of all the breakers, in creation order
+     */
+    fun snapshots(): List<UCCircuitBreaker.Snapshot> = breakers.map { it.snapshot() }
+}
+
+/**
+ * Consumer guarded by a circuit breaker, calling the fallback when the breaker is open
+ */
+internal data class CircuitBreaking<T, C>(val breaker: UCCircuitBreaker,
+                                          val consumer: (T?, C) -> Unit,
+                                          val fallback: (T?, C) -> Unit) : (T?, C) -> Unit, UCConsumer<T, C> {
+    private val target = UCConsumer.of(consumer)
+
+    override fun invoke(t: T?, c: C) = accept(t, c)
+
+    override fun accept(t: T?, c: C) = breaker.guard({ target.accept(t, c) }, { fallback(t, c) })
+}
+
+/**
+ * Extractor guarded by a circuit breaker, returning the fallback value when the breaker is open
+ */
+internal data class CircuitBreakingExtractor<T, R>(val breaker: UCCircuitBreaker,
+                                                   val extractor: (T?) -> R?,
+                                                   val fallback: R?) : (T?) -> R?, UCExtractor<T, R> {
+    private val target = UCExtractor.of(extractor)
+
+    override fun invoke(t: T?): R? = extract(t)
+
+    override fun extract(t: T?): R? = breaker.guard({ target.extract(t) }, { fallback })
+}
@@ -0,0 +1,155 @@
+package com.shaposhnyk.unilines.builders
+
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Request deadline, propagated to nested pipelines of the current thread and to their parallel fields.
+ * Every level can only narrow the deadline of the enclosing one,
+ * so inner fields see what is left of the request deadline.
+ * A deadline only informs: overrunning work is abandoned by fields with a deadline (see DeadlineExtractor),
+ * or by custom code checking isExpired()
+ */
+object UCDeadline {
+    private val current = ThreadLocal<Long?>()
+
+    /**
+     * Executes the block with a deadline of budgetMillis from now, or with the current one if it is earlier
+     */
+    @JvmStatic
+    fun <R> within(budgetMillis: Long, block: () -> R): R {
+        return at(deadlineOf(budgetMillis), block)
+    }
+
+    @JvmStatic
+    fun withinJ(budgetMillis: Long, block: Runnable) {
+        within(budgetMillis, { block.run() })
+    }
+
+    /**
+     * @return remaining time in milliseconds before current deadline, or Long.MAX_VALUE if there is no deadline
+     */
+    @JvmStatic
+    fun remainingMillis(): Long {
+        val deadline = current.get() ?: return Long.MAX_VALUE
+        return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())
+    }
+
+    /**
+     * @return true if current deadline is passed
+     */
+    @JvmStatic
+    fun isExpired(): Boolean {
+        val deadline = current.get() ?: return false
+        return deadline - System.nanoTime() <= 0
+    }
+
+    /**
+     * @return bounded pool to run extractors with deadlines on.
+     * Extractors submitted while all threads are busy and the queue is full get their fallback value
+     */
+    @JvmStatic
+    fun helperPool(threads: Int, queueSize: Int): ExecutorService {
+        val cnt = AtomicInteger()
+        return ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, ArrayBlockingQueue(queueSize),
+                ThreadFactory { r ->
+                    val t = Thread(r, "unilines-deadline-" + cnt.incrementAndGet())
+                    t.isDaemon = true
+                    t
+                })
+    }
+
+    /**
+     * @return absolute deadline (in System.nanoTime() terms) of the current thread, or null
+     */
+    internal fun current(): Long? = current.get()
+
+    /**
+     * @return absolute deadline (in System.nanoTime() terms), budgetMillis from now or the current one if earlier
+     */
+    internal fun deadlineOf(budgetMillis: Long): Long {
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis)
+        val enclosing = current.get() ?: return deadline
+        return if (enclosing - deadline < 0) enclosing else deadline
+    }
+
+    /**
+     * Executes the block with the given absolute deadline (none if null), restoring the enclosing one afterwards.
+     * Inlined, so pipelines calling it allocate no closure
+     */
+    internal inline fun <R> at(deadline: Long?, block: () -> R): R {
+        if (deadline == null) {
+            return block()
+        }
+        val enclosing = enter(deadline)
+        try {
+            return block()
+        } finally {
+            exit(enclosing)
+        }
+    }
+
+    /**
+     * Sets the deadline of the current thread
+     * @return enclosing deadline, to be restored with exit()
+     */
+    internal fun enter(deadline: Long): Long? {
+        val enclosing = current.get()
+        current.set(deadline)
+        return enclosing
+    }
+
+    internal fun exit(enclosing: Long?) {
+        if (enclosing != null) current.set(enclosing) else current.remove()
+    }
+}
+
+/**
+ * Consumer executed within a time budget, narrowing the deadline seen by nested fields
+ */
+internal data class DeadlineScoped<in T, C>(val budgetMillis: Long, val consumer: (T?, C) -> Unit)
+    : (T?, C) -> Unit, UCConsumer<T, C> {
+    private val target = UCConsumer.of(consumer)
+
+    override fun invoke(t: T?, c: C) = accept(t, c)
+
+    override fun accept(t: T?, c: C) = UCDeadline.at(UCDeadline.deadlineOf(budgetMillis), { target.accept(t, c) })
+}
+
+/**
+ * Extractor executed on a helper pool within a time budget (or what is left of the current deadline).
+ * An overrunning extractor is abandoned (interrupted), and the fallback value is returned instead
+ */
+internal data class DeadlineExtractor<T, R>(val budgetMillis: Long,
+                                            val executor: ExecutorService,
+                                            val extractor: (T?) -> R?,
+                                            val fallback: R?) : (T?) -> R?, UCExtractor<T, R> {
+    private val target = UCExtractor.of(extractor)
+
+    override fun invoke(t: T?): R? = extract(t)
+
+    override fun extract(t: T?): R? {
+        val deadline = UCDeadline.deadlineOf(budgetMillis)
+        val timeout = deadline - System.nanoTime()
+        if (timeout <= 0) {
+            return fallback
+        }
+        val future = try {
+            executor.submit(Callable { UCDeadline.at(deadline, { target.extract(t) }) })
+        } catch (e: RejectedExecutionException) {
+            return fallback
+        }
+        try {
+            return future.get(timeout, TimeUnit.NANOSECONDS)
+        } catch (e: TimeoutException) {
+            future.cancel(true)
+            return fallback
+        } catch (e: ExecutionException) {
+            throw e.cause as? RuntimeException ?: IllegalStateException(e.cause)
+        } catch (e: InterruptedException) {
+            future.cancel(true)
+            Thread.currentThread().interrupt()
+            return fallback
+        }
+    }
+}
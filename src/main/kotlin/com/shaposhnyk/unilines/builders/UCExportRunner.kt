@@ -0,0 +1,175 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UBiPipeline
+import java.io.BufferedWriter
+import java.io.Writer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
+import java.util.function.Consumer
+
+/**
+ * Bulk export of a partitioned source (key ranges, page tokens...) into a single file.
+ * Every partition is converted by the pipeline into its own part file, partitions being converted concurrently.
+ * A part file is checkpointed once complete, so a failed export can be resumed: only partitions
+ * without a valid checkpoint are converted again. Once all partitions are complete,
+ * parts are concatenated into the target file
+ * @param pipeline - converter of a partition (typically a flatMap over partition entries)
+ * @param contextFx - creates the working context of a partition, writing to the given part writer
+ * @param finishFx - completes the working context of a partition (closing elements, etc)
+ * @param header - written once at the beginning of the target file
+ * @param footer - written once at the end of the target file
+ */
+data class UCExportRunner<P, C> @JvmOverloads constructor(
+        val pipeline: UBiPipeline<P, C>,
+        private val contextFx: (Writer) -> C,
+        private val finishFx: (C) -> Unit = {},
+        private val header: String = "",
+        private val footer: String = "",
+        private val charset: Charset = Charsets.UTF_8,
+        private val bufferSize: Int = 64 * 1024
+) {
+
+    /**
+     * Outcome of an export run
+     * @param converted - partitions converted by this run
+     * @param resumed - partitions skipped thanks to a checkpoint of a previous run
+     * @param failures - failed partitions with their errors
+     */
+    data class Report(val target: Path,
+                      val converted: List<Int>,
+                      val resumed: List<Int>,
+                      val failures: Map<Int, Throwable>) {
+        fun isComplete(): Boolean = failures.isEmpty()
+    }
+
+    fun withFinisher(finishFx: (C) -> Unit) = copy(finishFx = finishFx)
+
+    fun withFinisherJ(finishFx: Consumer<C>) = withFinisher({ c -> finishFx.accept(c) })
+
+    fun withHeader(header: String, footer: String) = copy(header = header, footer = footer)
+
+    fun withCharset(charset: Charset) = copy(charset = charset)
+
+    fun withBufferSize(bufferSize: Int) = copy(bufferSize = bufferSize)
+
+    /**
+     * Exports partitions into the target file. Partitions must be listed in the same order between runs,
+     * as they are identified by their position
+     * @param executor - executor converting partitions concurrently
+     * @return report of the run. The target file is written only if the report is complete
+     */
+    fun run(partitions: List<P>, target: Path, executor: Executor): Report {
+        val pending = partitions.indices.filter { !isCheckpointed(target, it) }
+        val futures = pending.map { i ->
+            CompletableFuture.runAsync(Runnable { export(partitions[i], partPath(target, i), checkpointPath(target, i)) }, executor)
+        }
+        val failures = linkedMapOf<Int, Throwable>()
+        futures.forEachIndexed { n, future ->
+            try {
+                future.join()
+            } catch (e: CompletionException) {
+                failures.put(pending[n], e.cause ?: e)
+            }
+        }
+        val report = Report(target, pending.filter { !failures.containsKey(it) },
+                partitions.indices.filter { !pending.contains(it) }, failures)
+        if (report.isComplete()) {
+            concatenate(partitions.size, target)
+        }
+        return report
+    }
+
+    /**
+     * Converts a partition into a temporary file, then moves it to the part file and writes its checkpoint.
+     * The temporary file is removed if the partition fails
+     */
+    private fun export(partition: P, part: Path, checkpoint: Path) {
+        val tmp = part.resolveSibling(part.fileName.toString() + ".tmp")
+        var moved = false
+        try {
+            FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE).use { channel ->
+                val writer = BufferedWriter(Channels.newWriter(channel, charset.newEncoder(), bufferSize), bufferSize)
+                val ctx = contextFx(writer)
+                pipeline.consume(partition, ctx)
+                finishFx(ctx)
+                writer.flush()
+                channel.force(false)
+            }
+            Files.move(tmp, part, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            moved = true
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(tmp)
+            }
+        }
+        Files.write(checkpoint, Files.size(part).toString().toByteArray(Charsets.US_ASCII))
+    }
+
+    /**
+     * @return true if the part file is complete according to its checkpoint
+     */
+    private fun isCheckpointed(target: Path, i: Int): Boolean {
+        val checkpoint = checkpointPath(target, i)
+        val part = partPath(target, i)
+        if (!Files.exists(checkpoint) || !Files.exists(part)) {
+            return false
+        }
+        val size = String(Files.readAllBytes(checkpoint), Charsets.US_ASCII).trim().toLongOrNull()
+        return size == Files.size(part)
+    }
+
+    /**
+     * Concatenates part files into the target file (using zero-copy transfers), then removes them
+     */
+    private fun concatenate(count: Int, target: Path) {
+        val tmp = target.resolveSibling(target.fileName.toString() + ".tmp")
+        var moved = false
+        try {
+            FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE).use { out ->
+                write(out, header)
+                for (i in 0 until count) {
+                    FileChannel.open(partPath(target, i), StandardOpenOption.READ).use { part ->
+                        val size = part.size()
+                        var position = 0L
+                        while (position < size) {
+                            position += part.transferTo(position, size - position, out)
+                        }
+                    }
+                }
+                write(out, footer)
+                out.force(false)
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            moved = true
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(tmp)
+            }
+        }
+        for (i in 0 until count) {
+            Files.deleteIfExists(checkpointPath(target, i))
+            Files.deleteIfExists(partPath(target, i))
+        }
+    }
+
+    private fun write(out: FileChannel, s: String) {
+        val buffer = charset.encode(s)
+        while (buffer.hasRemaining()) {
+            out.write(buffer)
+        }
+    }
+
+    private fun partPath(target: Path, i: Int): Path =
+            target.resolveSibling(target.fileName.toString() + ".part-" + String.format("%05d", i))
+
+    private fun checkpointPath(target: Path, i: Int): Path =
+            target.resolveSibling(target.fileName.toString() + ".part-" + String.format("%05d", i) + ".done")
+}
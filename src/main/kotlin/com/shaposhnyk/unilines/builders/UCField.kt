@@ -3,6 +3,7 @@ package com.shaposhnyk.unilines.builders
 import com.shaposhnyk.unilines.UBiPipeline
 import com.shaposhnyk.unilines.UField
 import com.shaposhnyk.unilines.UTriConsumer
+import java.util.concurrent.ExecutorService
 import java.util.function.BiConsumer
 import java.util.function.BiFunction
 import java.util.function.Consumer
@@ -19,57 +20,58 @@ class UCField {
     data class Simple<T, C>(val f: UField,
                             val consumer: (T?, C) -> Unit = { _, _ -> Unit })
         : UField by f, UBiPipeline<T, C>, FilteringBuilder<T, C> {
+        private val target = UCConsumer.of(consumer)
+
         override fun fields(): List<UBiPipeline<*, *>> = listOf()
 
         override fun consume(sourceObj: T?, workingCtx: C) {
             try {
-                consumer(sourceObj, workingCtx)
+                target.accept(sourceObj, workingCtx)
             } catch (e: RuntimeException) {
                 defaultErrorHandler(f, e)
             }
         }
 
+        internal fun instrumented(): UBiPipeline<T, C> = Instrumented(this, f, recording(consumer))
+
         /**
          * @return new instance of UBiPipeline with a supplied consumer
          */
         fun <U, Z> withConsumer(newConsumer: (U?, Z) -> Unit): Simple<U, Z> {
-            return Simple(f, { t, c -> newConsumer(t, c) })
+            return Simple(f, newConsumer)
         }
 
         /**
          * @return new instance of UBiPipeline with a supplied consumer
          */
         fun <U, Z> withConsumerJ(newConsumer: BiConsumer<U, Z>): Simple<U, Z> {
-            return withConsumer { t, c ->
-                if (t != null) {
-                    newConsumer.accept(t, c)
-                }
-            }
+            return withConsumer(JWriter(newConsumer))
         }
 
         /**
          * @return new instance of UBiPipeline with a supplied consumer
          */
         fun <U, Z> withConsumerJF(newConsumer: UTriConsumer<UField, U, Z>): Simple<U, Z> {
-            return withConsumer { t, c -> if (t != null) newConsumer.accept(f, t, c) }
+            return withConsumer(JFieldWriter(f, newConsumer))
         }
 
         override fun withErrorHandler(errorHandler: (Exception, T?, C) -> Unit): Simple<T, C> {
-            return Simple(f, { t, c ->
-                try {
-                    consumer(t, c)
-                } catch (e: Exception) {
-                    errorHandler(e, t, c)
-                }
-            })
+            return Simple(f, ErrorHandling(consumer, errorHandler))
         }
 
         override fun filter(predicate: (T?, C) -> Boolean): Simple<T, C> {
-            return Simple(f, { s, c ->
-                if (predicate(s, c)) {
-                    this.consume(s, c)
-                }
-            })
+            if (consumer is AdaptiveFiltered<T, C>) {
+                return Simple(f, consumer.with(predicate))
+            }
+            return Simple(f, Filtered(predicate, consumer))
+        }
+
+        override fun adaptiveFilters(): Simple<T, C> {
+            return Simple(f, AdaptiveFiltered.of(consumer))
+        }
+
+        override fun withCircuitBreaker(breakers: UCCircuitBreakers, fallback: (T?, C) -> Unit): Simple<T, C> {
+            return Simple(f, CircuitBreaking(breakers.create(f), consumer, fallback))
         }
     }
 
@@ -82,19 +84,23 @@ class UCField {
                                    val writer: (R?, C) -> Unit = { _, _ -> Unit })
         : UField by f, UBiPipeline<T, C>,
             FilteringBuilder<T, C>, ExtractingBuilder<T, C, R> {
+        private val from = UCExtractor.of(extractor)
+        private val to = UCWriter.of(writer)
+
         override fun fields(): List<UBiPipeline<*, *>> = listOf()
 
         override fun extractor(): (T?) -> R? = extractor
 
         override fun consume(sourceObj: T?, workingCtx: C) {
             try {
-                val v1 = extractor(sourceObj)
-                writer(v1, workingCtx)
+                to.write(from.extract(sourceObj), workingCtx)
             } catch (e: RuntimeException) {
                 defaultErrorHandler(f, e)
             }
         }
 
+        internal fun instrumented(): UBiPipeline<T, C> = Instrumented(this, f, ExtractingWriter(f, extractor, Recorded.of(f, writer)))
+
         /*
          * Writers
          */
@@ -104,41 +110,57 @@ class UCField {
         }
 
         fun <Z> withWriterJ(newWriter: BiConsumer<R, Z>): Extracting<T, Z, R> {
-            return withWriter { r, c -> if (r != null) newWriter.accept(r, c) }
+            return withWriter(JWriter(newWriter))
         }
 
         fun <Z> withWriterJF(newWriter: UTriConsumer<UField, R, Z>): Extracting<T, Z, R> {
-            return withWriter { r, c -> if (r != null) newWriter.accept(f, r, c) }
+            return withWriter(JFieldWriter(f, newWriter))
         }
 
         /*
          * Filters
          */
         override fun filter(predicate: (T?, C) -> Boolean): Simple<T, C> {
-            return Simple(f, { t, c -> if (predicate(t, c)) this.consume(t, c) })
+            return Simple(f, Filtered(predicate, ExtractingWriter(f, extractor, writer)))
+        }
+
+        override fun adaptiveFilters(): Simple<T, C> {
+            return Simple(f, AdaptiveFiltered(listOf(), ExtractingWriter(f, extractor, writer)))
         }
 
         override fun withErrorHandler(errorHandler: (Exception, T?, C) -> Unit): Simple<T, C> {
-            return Simple<T, C>(f, { t: T?, c: C -> this.consume(t, c) })
-                    .withErrorHandler(errorHandler)
+            return Simple(f, ErrorHandling(ExtractingWriter(f, extractor, writer), errorHandler))
+        }
+
+        override fun withCircuitBreaker(breakers: UCCircuitBreakers, fallback: (T?, C) -> Unit): Simple<T, C> {
+            return Simple(f, CircuitBreaking(breakers.create(f), ExtractingWriter(f, extractor, writer), fallback))
         }
 
         override fun withExtractionErrorHandler(errorHandler: (Exception, T?) -> R?): Extracting<T, C, R> {
-            return Extracting<T, C, R>(f, { t ->
-                try {
-                    extractor(t)
-                } catch (e: Exception) {
-                    errorHandler(e, t)
-                }
-            }, writer)
+            return Extracting(f, ExtractionErrorHandling(extractor, errorHandler), writer)
+        }
+
+        override fun withExtractionCircuitBreaker(breakers: UCCircuitBreakers, fallback: R?): Extracting<T, C, R> {
+            return Extracting(f, CircuitBreakingExtractor(breakers.create(f), extractor, fallback), writer)
+        }
+
+        override fun withDeadline(budgetMillis: Long, executor: ExecutorService, fallback: R?): Extracting<T, C, R> {
+            return Extracting(f, DeadlineExtractor(budgetMillis, executor, extractor, fallback), writer)
         }
 
         override fun postFilter(predicate: (R?) -> Boolean): Extracting<T, C, R> {
-            return Extracting(f, extractor, { r, c -> if (predicate(r)) this.writer(r, c) else Unit })
+            if (writer is AdaptivePostFiltered<R, C>) {
+                return Extracting(f, extractor, writer.with(predicate))
+            }
+            return Extracting(f, extractor, PostFiltered(predicate, writer))
+        }
+
+        override fun adaptivePostFilters(): Extracting<T, C, R> {
+            return Extracting(f, extractor, AdaptivePostFiltered.of(writer))
         }
 
         override fun decorate(fx: (R?) -> R?): Extracting<T, C, R> {
-            return Extracting(f, { fx(extractor(it)) }, this.writer)
+            return Extracting(f, Composed(extractor, fx), writer)
         }
     }
 
@@ -150,17 +172,21 @@ class UCField {
                                     val writer: (Any?, C) -> Unit = { _, _ -> Unit })
         : UField by f, UBiPipeline<T, C>,
             FilteringBuilder<T, C>, ExtractingBuilder<T, C, R> {
+        private val from = UCExtractor.of(extractor)
+        private val to = UCWriter.of(writer)
+
         override fun fields(): List<UBiPipeline<*, *>> = listOf()
 
         override fun consume(sourceObj: T?, workingCtx: C) {
             try {
-                val v1 = extractor(sourceObj)
-                writer(v1, workingCtx)
+                to.write(from.extract(sourceObj), workingCtx)
             } catch (e: RuntimeException) {
                 defaultErrorHandler(f, e)
             }
         }
 
+        internal fun instrumented(): UBiPipeline<T, C> = Instrumented(this, f, ExtractingWriter(f, extractor, Recorded.of(f, writer)))
+
         override fun extractor(): (T?) -> R? = extractor
 
         /*
@@ -171,60 +197,202 @@ class UCField {
         }
 
         fun <Z> withWriterF(newWriter: UTriConsumer<UField, Any?, Z>): UExtracting<T, Z, R> {
-            return UExtracting(f, extractor, { r, c -> newWriter.accept(f, r, c) })
+            return UExtracting(f, extractor, JNullableFieldWriter(f, newWriter))
         }
 
         fun <Z> withWriterJ(newWriter: BiConsumer<Any, Z>): UExtracting<T, Z, R> {
-            return withWriter { r, c -> if (r != null) newWriter.accept(r, c) }
+            return withWriter(JWriter(newWriter))
         }
 
         fun <Z> withWriterJF(newWriter: UTriConsumer<UField, Any, Z>): UExtracting<T, Z, R> {
-            return withWriter { r, c -> if (r != null) newWriter.accept(f, r, c) }
+            return withWriter(JFieldWriter(f, newWriter))
+        }
+
+        /**
+         * The value is extracted and decorated once, then written into several sinks (see UCSink.bind())
+         */
+        fun withWriters(vararg writers: (Any?, UCSinks) -> Unit): UExtracting<T, UCSinks, R> {
+            return withWriter(SinksFanOut(writers.toList()))
         }
 
         /*
          * Conditions
          */
         override fun filter(predicate: (T?, C) -> Boolean): Simple<T, C> {
-            return Simple(f, { t, c -> if (predicate(t, c)) this.consume(t, c) })
+            return Simple(f, Filtered(predicate, ExtractingWriter(f, extractor, writer)))
+        }
+
+        override fun adaptiveFilters(): Simple<T, C> {
+            return Simple(f, AdaptiveFiltered(listOf(), ExtractingWriter(f, extractor, writer)))
         }
 
         override fun withErrorHandler(errorHandler: (Exception, T?, C) -> Unit): Simple<T, C> {
-            return Simple<T, C>(f, { t: T?, c: C -> this.consume(t, c) })
-                    .withErrorHandler(errorHandler)
+            return Simple(f, ErrorHandling(ExtractingWriter(f, extractor, writer), errorHandler))
+        }
+
+        override fun withCircuitBreaker(breakers: UCCircuitBreakers, fallback: (T?, C) -> Unit): Simple<T, C> {
+            return Simple(f, CircuitBreaking(breakers.create(f), ExtractingWriter(f, extractor, writer), fallback))
         }
 
         override fun postFilter(predicate: (R?) -> Boolean): Extracting<T, C, R> {
-            return Extracting(f, extractor, { t: R?, c: C -> if (predicate(t)) writer(t, c) })
+            return Extracting(f, extractor, PostFiltered(predicate, writer))
+        }
+
+        override fun adaptivePostFilters(): Extracting<T, C, R> {
+            return Extracting(f, extractor, AdaptivePostFiltered(listOf(), writer))
         }
 
         /*
          * Value decorators
          */
         override fun decorate(fx: (R?) -> R?): UExtracting<T, C, R> {
-            return UExtracting(f, { fx(extractor(it)) }, writer)
+            return UExtracting(f, Composed(extractor, fx), writer)
         }
 
         override fun decorateJ(fx: Function<R, R?>): UExtracting<T, C, R> {
-            return decorate { it -> if (it != null) fx.apply(it) else null }
+            return decorate(JFunction(fx))
         }
 
         override fun withExtractionErrorHandler(errorHandler: (Exception, T?) -> R?): UExtracting<T, C, R> {
-            return UExtracting<T, C, R>(f, { t ->
-                try {
-                    extractor(t)
-                } catch (e: Exception) {
-                    errorHandler(e, t)
-                }
-            }, writer)
+            return UExtracting(f, ExtractionErrorHandling(extractor, errorHandler), writer)
+        }
+
+        override fun withExtractionCircuitBreaker(breakers: UCCircuitBreakers, fallback: R?): UExtracting<T, C, R> {
+            return UExtracting(f, CircuitBreakingExtractor(breakers.create(f), extractor, fallback), writer)
+        }
+
+        override fun withDeadline(budgetMillis: Long, executor: ExecutorService, fallback: R?): UExtracting<T, C, R> {
+            return UExtracting(f, DeadlineExtractor(budgetMillis, executor, extractor, fallback), writer)
         }
 
         fun <U> map(fx: (R?) -> U?): UExtracting<T, C, U> {
-            return UExtracting(f, { it: T? -> fx(extractor(it)) }, writer)
+            return UExtracting(f, Composed(extractor, fx), writer)
         }
 
         fun <U> mapJ(fx: Function<R, U?>): UExtracting<T, C, U> {
-            return map { if (it != null) fx.apply(it) else null }
+            return map(JFunction(fx))
+        }
+    }
+
+    /**
+     * Pipeline, which looks values up by keys extracted from source objects, many keys at once.
+     * Within a flatMap, items are deferred until the window is full or all the items are fed,
+     * then missing keys are looked up with a single bulk lookup and values are written in items order.
+     * Values are cached for the duration of the enclosing flatMap, so each key is looked up once.
+     * Outside of a flatMap, or if the flatMap cannot see it among its fields (e.g. called by a custom field),
+     * every item is looked up immediately
+     * @param windowSize - maximal number of deferred items
+     */
+    data class Batching<T, C, K, V>(val f: UField,
+                                    val keyFx: (T?) -> K?,
+                                    val bulkFx: (Set<K>) -> Map<K, V>,
+                                    val windowSize: Int,
+                                    val writer: (V?, C) -> Unit = { _, _ -> Unit })
+        : UField by f, UBiPipeline<T, C> {
+
+        init {
+            if (windowSize < 1) {
+                throw IllegalArgumentException("Window size should be positive, but was $windowSize")
+            }
+        }
+
+        override fun fields(): List<UBiPipeline<*, *>> = listOf()
+
+        override fun consume(sourceObj: T?, workingCtx: C) {
+            try {
+                val key = keyFx(sourceObj)
+                val batches = UCBatches.current()
+                if (batches == null) {
+                    val value = if (key != null) bulkFx(setOf(key))[key] else null
+                    writer(value, workingCtx)
+                    if (UCFingerprint.armed.isOn) {
+                        UCFingerprint.record(f, value)
+                    }
+                    return
+                }
+                val state = batches.stateOf<K, V, C>(this)
+                synchronized(state) {
+                    state.pending.add(Pair(key, workingCtx))
+                    if (state.pending.size >= windowSize) {
+                        flush(state)
+                    }
+                }
+            } catch (e: RuntimeException) {
+                defaultErrorHandler(f, e)
+            }
+        }
+
+        internal fun flush(batches: UCBatches) {
+            try {
+                val state = batches.stateOf<K, V, C>(this)
+                synchronized(state) {
+                    flush(state)
+                }
+            } catch (e: RuntimeException) {
+                defaultErrorHandler(f, e)
+            }
+        }
+
+        private fun flush(state: UCBatches.State<K, V, C>) {
+            val missing = LinkedHashSet<K>()
+            state.pending.forEach { (k, _) ->
+                if (k != null && !state.cache.containsKey(k)) missing.add(k)
+            }
+            if (!missing.isEmpty()) {
+                val found = bulkFx(missing)
+                missing.forEach { k -> state.cache.put(k, found[k]) }
+            }
+            val pending = state.pending.toList()
+            state.pending.clear()
+            pending.forEach { (k, c) ->
+                val value = if (k != null) state.cache[k] else null
+                writer(value, c)
+                if (UCFingerprint.armed.isOn) {
+                    UCFingerprint.record(f, value)
+                }
+            }
+        }
+
+        /*
+         * Writers
+         */
+
+        fun <Z> withWriter(newWriter: (V?, Z) -> Unit): Batching<T, Z, K, V> {
+            return Batching(f, keyFx, bulkFx, windowSize, newWriter)
+        }
+
+        fun <Z> withWriterJ(newWriter: BiConsumer<V, Z>): Batching<T, Z, K, V> {
+            return withWriter(JWriter(newWriter))
+        }
+
+        fun <Z> withWriterJF(newWriter: UTriConsumer<UField, V, Z>): Batching<T, Z, K, V> {
+            return withWriter(JFieldWriter(f, newWriter))
+        }
+
+        fun withWindowSize(newWindowSize: Int): Batching<T, C, K, V> {
+            return Batching(f, keyFx, bulkFx, newWindowSize, writer)
+        }
+    }
+
+    /**
+     * Leaf field creating Flight Recorder events, values written by its consumer being recorded into fingerprints.
+     * Objects feed it instead of the leaf while either is requested (see instrumented()), so leaves never check for them
+     */
+    internal class Instrumented<in T, C>(private val field: UBiPipeline<T, C>,
+                                         private val f: UField,
+                                         consumer: (T?, C) -> Unit) : UBiPipeline<T, C> by field {
+        private val target = UCConsumer.of(consumer)
+
+        override fun consume(sourceObj: T?, workingCtx: C) {
+            val event = if (UCFlightRecorder.fieldsArmed.isOn) UCFlightRecorder.field() else null
+            try {
+                target.accept(sourceObj, workingCtx)
+            } catch (e: RuntimeException) {
+                event?.failed = true
+                defaultErrorHandler(f, e)
+            } finally {
+                event?.commit(f, 1)
+            }
         }
     }
 
@@ -241,7 +409,7 @@ class UCField {
          * Type of value returned by extractor should match to the type of the writer
          */
         fun <T, C, R> extractingOf(f: UField, fx: Function<T, R?>): Extracting<T, C, R> {
-            return Extracting(f, { t -> if (t != null) fx.apply(t) else null })
+            return Extracting(f, JFunction(fx))
         }
 
         /*
@@ -249,21 +417,62 @@ class UCField {
          * Writer accepts Object, it is up to writer to handle all possible input types
          */
         fun <T, C, R> uniExtractingOf(f: UField, fx: Function<T, R?>): UExtracting<T, C, R> {
-            return UExtracting(f, { t -> if (t != null) fx.apply(t) else null })
+            return UExtracting(f, JFunction(fx))
         }
 
         fun <T, C, R> fUniExtractingOf(f: UField, fx: BiFunction<UField, T, R?>): UExtracting<T, C, R> {
-            return UExtracting(f, { t -> if (t != null) fx.apply(f, t) else null })
+            return UExtracting(f, JFieldFunction(f, fx))
+        }
+
+        /*
+         * Converters reading the attribute named by internalName() of the field from an attribute-bag source.
+         * Attributes needed by a pipeline of such converters are known, see UCAttributes.requiredBy()
+         */
+        fun <T, C> attributeOf(f: UField, source: UCAttributeSource<T>): UExtracting<T, C, Any?> {
+            return UExtracting(f, AttributeRead(source, f.internalName()))
+        }
+
+        /*
+         * Converters looking values up by keys, many keys at once.
+         * Type of value returned by bulk lookup should match to the type of the writer
+         */
+        @JvmOverloads
+        fun <T, C, K, V> batchingOf(f: UField,
+                                    keyFx: Function<T, K?>,
+                                    bulkFx: Function<Set<K>, Map<K, V>>,
+                                    windowSize: Int = 100): Batching<T, C, K, V> {
+            return Batching(f, JFunction(keyFx), bulkFx::apply, windowSize)
         }
 
         fun <T, C> contextMapperOf(f: UField, ctxFx: Consumer<C>): Simple<T, C> {
-            return Simple(f, { _, c -> ctxFx.accept(c) })
+            return Simple(f, JContextConsumer(ctxFx))
         }
 
         /**
          * Default UBiPipeline error handler, which insert given field into stack trace
          */
+        /**
+         * @return true if leaf fields are to be instrumented: events of fields or fingerprints requested
+         */
+        internal fun isInstrumented(): Boolean = UCFlightRecorder.fieldsArmed.isOn || UCFingerprint.armed.isOn
+
+        /**
+         * @return fields of an object, leaves being replaced by their instrumented versions
+         */
+        @Suppress("UNCHECKED_CAST")
+        internal fun <T, C> instrumented(fields: List<UBiPipeline<T, C>>): List<UBiPipeline<T, C>> = fields.map { f ->
+            when (f) {
+                is Simple<*, *> -> (f as Simple<T, C>).instrumented()
+                is Extracting<*, *, *> -> (f as Extracting<T, C, Any?>).instrumented()
+                is UExtracting<*, *, *> -> (f as UExtracting<T, C, Any?>).instrumented()
+                else -> f
+            }
+        }
+
         fun defaultErrorHandler(f: UField, e: Exception, lineNo: Int = 1) {
+            if (e is UCCancelledException) {
+                throw e
+            }
             val fileName = "AutoGeneratedUField.java"
             val newStack = StackTraceElement(f::class.java.canonicalName,
                     "from_${f.internalName()}_to_${f.externalName()}\$consume", fileName, lineNo)
@@ -0,0 +1,139 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UBiPipeline
+import com.shaposhnyk.unilines.UField
+
+/**
+ * Fingerprint of a conversion output: a stable 64-bit hash of external name and value of every extracting field,
+ * in tree order. It is computed while writers run, from written values rather than from the working context,
+ * so outputs of the same pipeline into different context types (Map, XML...) have the same fingerprint.
+ * Values rejected by post-filters are not written, so they do not contribute.
+ * Custom consumers (UCField.Simple) do not contribute, their output being unknown.
+ * Values are hashed by content for strings, maps, iterables and arrays (primitive ones included),
+ * and by toString() otherwise: other values must have a toString() depending on their content only,
+ * so fingerprints are stable between runs. Values keeping the identity toString() of Object are hashed
+ * by hashCode() if their class overrides it, by class name only otherwise.
+ * Comparing fingerprints with the ones stored by a previous run allows skipping unchanged records
+ */
+object UCFingerprint {
+    private const val SEED = -0x340d631b7bdddcdbL // FNV-1a offset basis
+    private const val PRIME = 0x100000001b3L // FNV-1a prime
+    private const val BASE = -0x61c8864680b583ebL // multiplier of the sequence hash (odd)
+    private const val NULL = 0x2545f4914f6cdd1dL
+
+    /**
+     * Polynomial hash of a sequence of tokens. Appending a sub-sequence hashed separately
+     * gives the same result as appending its tokens one by one, so concurrent fields can be hashed apart
+     */
+    internal class Accumulator {
+        var hash = 0L
+        var power = 1L
+
+        fun add(token: Long) {
+            hash = hash * BASE + token
+            power *= BASE
+        }
+
+        fun append(other: Accumulator) {
+            hash = hash * other.power + other.hash
+            power *= other.power
+        }
+    }
+
+    private val current = ThreadLocal<Accumulator?>()
+
+    /**
+     * On once a fingerprint was requested. Until then, fields do not look for the current accumulator
+     */
+    internal val armed = UCSwitch()
+
+    /**
+     * Consumes the source object with the pipeline
+     * @return fingerprint of the output
+     */
+    @JvmStatic
+    fun <T, C> consume(pipeline: UBiPipeline<T, C>, sourceObj: T?, workingCtx: C): Long {
+        val acc = Accumulator()
+        // leaves record values only once instrumented by their object, so does a pipeline being a leaf itself
+        val instrumented = UCField.instrumented(listOf(pipeline)).single()
+        into(acc, { instrumented.consume(sourceObj, workingCtx) })
+        return Hashing.mix(acc.hash)
+    }
+
+    /**
+     * @return accumulator of the current thread, or null if no fingerprint is computed
+     */
+    internal fun current(): Accumulator? = if (armed.isOn) current.get() else null
+
+    /**
+     * Records the value of a field into the current fingerprint, if any
+     */
+    internal fun record(f: UField, value: Any?) {
+        val acc = current.get() ?: return
+        acc.add(Hashing.mix(hash(hash(SEED, f.externalName()), value)))
+    }
+
+    /**
+     * Executes the block accumulating into the given accumulator (or into none, if null)
+     */
+    internal fun <R> into(acc: Accumulator?, block: () -> R): R {
+        if (acc != null) {
+            armed.on()
+        }
+        val enclosing = current.get()
+        current.set(acc)
+        try {
+            return block()
+        } finally {
+            if (enclosing != null) current.set(enclosing) else current.remove()
+        }
+    }
+
+    private fun hash(h: Long, value: Any?): Long {
+        return when (value) {
+            null -> h xor NULL
+            is CharSequence -> hash(h, value)
+            is Map<*, *> -> value.entries.fold(hash(h, "{"), { acc, e -> hash(hash(acc, e.key), e.value) })
+            is Iterable<*> -> value.fold(hash(h, "["), { acc, e -> hash(acc, e) })
+            is Array<*> -> value.fold(hash(h, "["), { acc, e -> hash(acc, e) })
+            is ByteArray -> value.fold(hash(h, "["), { acc, b -> (acc xor (b.toLong() and 0xff)) * PRIME })
+            is IntArray -> hash(h, value.contentToString())
+            is LongArray -> hash(h, value.contentToString())
+            is ShortArray -> hash(h, value.contentToString())
+            is CharArray -> hash(h, value.contentToString())
+            is BooleanArray -> hash(h, value.contentToString())
+            is DoubleArray -> hash(h, value.contentToString())
+            is FloatArray -> hash(h, value.contentToString())
+            else -> when (contentOf.get(value.javaClass)) {
+                Content.TO_STRING -> hash(h, value.toString())
+                Content.HASH_CODE -> hash(hash(h, value.javaClass.name), "#" + value.hashCode())
+                else -> hash(h, value.javaClass.name)
+            }
+        }
+    }
+
+    /**
+     * Content of a value the fingerprint depends on
+     */
+    private enum class Content { TO_STRING, HASH_CODE, TYPE }
+
+    /**
+     * Content of instances of a class: toString() or hashCode() if overridden, as those of Object depend on identity
+     */
+    private val contentOf = object : ClassValue<Content>() {
+        override fun computeValue(type: Class<*>): Content = when {
+            type.getMethod("toString").declaringClass != Any::class.java -> Content.TO_STRING
+            type.getMethod("hashCode").declaringClass != Any::class.java -> Content.HASH_CODE
+            else -> Content.TYPE
+        }
+    }
+
+    private fun hash(h: Long, s: CharSequence): Long {
+        var acc = h
+        for (i in 0 until s.length) {
+            acc = (acc xor s[i].toLong()) * PRIME
+        }
+        // length terminates the string, so "ab","c" and "a","bc" differ
+        return (acc xor s.length.toLong()) * PRIME
+    }
+}
@@ -0,0 +1,196 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import java.lang.invoke.LambdaConversionException
+import java.lang.invoke.LambdaMetafactory
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType.methodType
+import java.util.function.Consumer
+import java.util.function.Predicate
+import java.util.function.Supplier
+
+/**
+ * JDK Flight Recorder events of pipeline execution, visible in JMC under the "Unilines" category:
+ * - unilines.Pipeline - consume() of an object or flatMap node, with the number of items
+ * - unilines.Field - consume() of a leaf field (extracting or custom), if requested
+ * Events carry internal and external names of the field and whether it failed.
+ * They are defined at runtime through jdk.jfr.EventFactory (JDK 8u262+, 11+), and are no-op on JDKs without it.
+ * Enabled/threshold settings of the recording apply, e.g. unilines.Pipeline#threshold=10 ms
+ */
+object UCFlightRecorder {
+    private const val INTERNAL_NAME = 0
+    private const val EXTERNAL_NAME = 1
+    private const val ITEMS = 2
+    private const val FAILED = 3
+
+    /**
+     * On once events are enabled. Until then, pipelines do not create events
+     */
+    internal val armed = UCSwitch()
+
+    /**
+     * On if leaf fields create events too
+     */
+    internal val fieldsArmed = UCSwitch()
+
+    private val jfr: Jfr? by lazy { Jfr.load() }
+
+    /**
+     * @return true if the running JDK supports Flight Recorder events
+     */
+    @JvmStatic
+    fun isAvailable(): Boolean = jfr != null
+
+    /**
+     * Enables events (they are still recorded only while a recording with them enabled is running)
+     * @param fields - true to create events for leaf fields too, which costs more for wide objects
+     * @return true if enabled, false if the JDK does not support Flight Recorder events
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun enable(fields: Boolean = false): Boolean {
+        if (!isAvailable()) {
+            return false
+        }
+        if (fields) fieldsArmed.on() else fieldsArmed.off()
+        armed.on()
+        return true
+    }
+
+    @JvmStatic
+    fun disable() {
+        armed.off()
+        fieldsArmed.off()
+    }
+
+    /**
+     * @return started event of a pipeline node, or null if not recorded
+     */
+    internal fun pipeline(): Event? = jfr?.let { it.begin(it.pipeline) }
+
+    /**
+     * @return started event of a leaf field, or null if not recorded
+     */
+    internal fun field(): Event? = jfr?.let { it.begin(it.field) }
+
+    /**
+     * Started event, committed once the field is consumed
+     */
+    internal class Event(private val jfr: Jfr, private val event: Any) {
+        var failed = false
+
+        fun commit(f: UField, items: Int) {
+            jfr.commit(event, f, items, failed)
+        }
+    }
+
+    /**
+     * Access to jdk.jfr, resolved once: event methods are bound to interfaces through LambdaMetafactory,
+     * so events are created and committed with plain interface calls.
+     * (Kotlin compiles MethodHandle.invokeExact() as a varargs call, which cannot match the handle types)
+     */
+    internal class Jfr private constructor(val pipeline: Supplier<Any>, val field: Supplier<Any>,
+                                           private val isEnabled: Predicate<Any>,
+                                           private val begin: Consumer<Any>,
+                                           private val shouldCommit: Predicate<Any>,
+                                           private val set: Setter,
+                                           private val commit: Consumer<Any>) {
+
+        /**
+         * jdk.jfr.Event.set(int, Object)
+         */
+        internal interface Setter {
+            fun set(event: Any, index: Int, value: Any?)
+        }
+
+        fun begin(newEvent: Supplier<Any>): Event? {
+            val event = newEvent.get()
+            if (!isEnabled.test(event)) {
+                return null
+            }
+            begin.accept(event)
+            return Event(this, event)
+        }
+
+        /**
+         * Commits the event, unless it is below the threshold of the recording
+         */
+        fun commit(event: Any, f: UField, items: Int, failed: Boolean) {
+            if (!shouldCommit.test(event)) {
+                return
+            }
+            set.set(event, INTERNAL_NAME, f.internalName())
+            set.set(event, EXTERNAL_NAME, f.externalName())
+            set.set(event, ITEMS, items.toLong())
+            set.set(event, FAILED, failed)
+            commit.accept(event)
+        }
+
+        companion object {
+            fun load(): Jfr? {
+                return try {
+                    val factoryClass = Class.forName("jdk.jfr.EventFactory")
+                    val eventClass = Class.forName("jdk.jfr.Event")
+                    val create = factoryClass.getMethod("create", List::class.java, List::class.java)
+                    val fields = listOf(
+                            value(String::class.java, "internalName", "Internal Name"),
+                            value(String::class.java, "externalName", "External Name"),
+                            value(java.lang.Long.TYPE, "items", "Items"),
+                            value(java.lang.Boolean.TYPE, "failed", "Failed"))
+                    val lookup = MethodHandles.lookup()
+                    val newEvent = lookup.unreflect(factoryClass.getMethod("newEvent"))
+                    val test = methodType(java.lang.Boolean.TYPE)
+                    val run = methodType(Void.TYPE)
+                    Jfr(bind<Supplier<Any>>(lookup, "get", newEvent, create.invoke(null, event("unilines.Pipeline", "Pipeline"), fields)),
+                            bind<Supplier<Any>>(lookup, "get", newEvent, create.invoke(null, event("unilines.Field", "Field"), fields)),
+                            bind<Predicate<Any>>(lookup, "test", lookup.findVirtual(eventClass, "isEnabled", test)),
+                            bind<Consumer<Any>>(lookup, "accept", lookup.findVirtual(eventClass, "begin", run)),
+                            bind<Predicate<Any>>(lookup, "test", lookup.findVirtual(eventClass, "shouldCommit", test)),
+                            bind<Setter>(lookup, "set", lookup.findVirtual(eventClass, "set",
+                                    methodType(Void.TYPE, Integer.TYPE, Any::class.java))),
+                            bind<Consumer<Any>>(lookup, "accept", lookup.findVirtual(eventClass, "commit", run)))
+                } catch (e: ReflectiveOperationException) {
+                    null
+                } catch (e: LambdaConversionException) {
+                    null
+                } catch (e: LinkageError) {
+                    null
+                }
+            }
+
+            /**
+             * @return instance of the single-method interface calling the method, on the receiver if given
+             */
+            private inline fun <reified I : Any> bind(lookup: MethodHandles.Lookup, name: String,
+                                                      method: MethodHandle, receiver: Any? = null): I {
+                val type = I::class.java
+                val implemented = type.methods.single { it.name == name }
+                val captured = if (receiver != null) method.type().parameterList().take(1) else emptyList()
+                val site = LambdaMetafactory.metafactory(lookup, name, methodType(type, captured),
+                        methodType(implemented.returnType, implemented.parameterTypes),
+                        method, method.type().dropParameterTypes(0, captured.size))
+                val target = site.target
+                return (if (receiver != null) target.invokeWithArguments(receiver) else target.invokeWithArguments()) as I
+            }
+
+            private fun event(name: String, label: String): List<Any> {
+                return listOf(annotation("jdk.jfr.Name", name),
+                        annotation("jdk.jfr.Label", label),
+                        annotation("jdk.jfr.Category", arrayOf("Unilines")))
+            }
+
+            private fun value(type: Class<*>, name: String, label: String): Any {
+                return Class.forName("jdk.jfr.ValueDescriptor")
+                        .getConstructor(Class::class.java, String::class.java, List::class.java)
+                        .newInstance(type, name, listOf(annotation("jdk.jfr.Label", label)))
+            }
+
+            private fun annotation(type: String, value: Any): Any {
+                return Class.forName("jdk.jfr.AnnotationElement")
+                        .getConstructor(Class::class.java, Any::class.java)
+                        .newInstance(Class.forName(type), value)
+            }
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UBiPipeline
+import java.lang.invoke.LambdaConversionException
+import java.lang.invoke.LambdaMetafactory
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType.methodType
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.BiConsumer
+import java.util.function.Consumer
+import java.util.function.ObjLongConsumer
+import java.util.function.Supplier
+
+/**
+ * Reactive Streams interfaces (same contract as java.util.concurrent.Flow, which is not available on Java 8).
+ * They are adapted to java.util.concurrent.Flow or to org.reactivestreams with a Bridge, see flow() and reactiveStreams()
+ */
+object UCFlow {
+    interface Publisher<out T> {
+        fun subscribe(subscriber: Subscriber<T>)
+    }
+
+    interface Subscriber<in T> {
+        fun onSubscribe(subscription: Subscription)
+
+        fun onNext(item: T)
+
+        fun onError(throwable: Throwable)
+
+        fun onComplete()
+    }
+
+    interface Subscription {
+        fun request(n: Long)
+
+        fun cancel()
+    }
+
+    interface Processor<in T, out R> : Subscriber<T>, Publisher<R>
+
+    /**
+     * @return bridge to java.util.concurrent.Flow, or null if the JDK does not have it (Java 8)
+     */
+    @JvmStatic
+    fun flow(): Bridge? = Bridge.load("java.util.concurrent.Flow\$")
+
+    /**
+     * @return bridge to org.reactivestreams, or null if it is not on the class path
+     */
+    @JvmStatic
+    fun reactiveStreams(): Bridge? = Bridge.load("org.reactivestreams.")
+
+    /**
+     * Adapter between these interfaces and an API of the same shape (Publisher, Subscriber, Subscription, Processor),
+     * accessed reflectively, so that neither java.util.concurrent.Flow nor org.reactivestreams is a compile dependency.
+     * to<Type>() return dynamic proxies implementing the foreign interfaces, and from<Type>() take foreign objects,
+     * whose methods are bound once to functional interfaces through LambdaMetafactory, so that every signal
+     * is a plain interface call rather than a Method.invoke(). Adapting back an adapted object returns the original one
+     */
+    class Bridge(private val publisherType: Class<*>,
+                 private val subscriberType: Class<*>,
+                 private val subscriptionType: Class<*>,
+                 private val processorType: Class<*>) {
+        private val subscribe = bind<BiConsumer<Any, Any?>>("accept", publisherType.getMethod("subscribe", subscriberType))
+        private val onSubscribe = bind<BiConsumer<Any, Any?>>("accept", subscriberType.getMethod("onSubscribe", subscriptionType))
+        private val onNext = bind<BiConsumer<Any, Any?>>("accept", subscriberType.getMethod("onNext", Any::class.java))
+        private val onError = bind<BiConsumer<Any, Any?>>("accept", subscriberType.getMethod("onError", Throwable::class.java))
+        private val onComplete = bind<Consumer<Any>>("accept", subscriberType.getMethod("onComplete"))
+        private val request = bind<ObjLongConsumer<Any>>("accept", subscriptionType.getMethod("request", java.lang.Long.TYPE))
+        private val cancel = bind<Consumer<Any>>("accept", subscriptionType.getMethod("cancel"))
+
+        /**
+         * @return foreign Publisher
+         */
+        fun <P> toPublisher(publisher: Publisher<*>): P = proxy(publisherType, publisher)
+
+        /**
+         * @return foreign Subscriber
+         */
+        fun <S> toSubscriber(subscriber: Subscriber<*>): S = proxy(subscriberType, subscriber)
+
+        /**
+         * @return foreign Processor, e.g. of a UCFlowProcessor
+         */
+        fun <P> toProcessor(processor: Processor<*, *>): P = proxy(processorType, processor)
+
+        @Suppress("UNCHECKED_CAST")
+        fun <T> fromPublisher(publisher: Any): Publisher<T> {
+            val adapted = unwrap(publisher)
+            if (adapted is Publisher<*>) {
+                return adapted as Publisher<T>
+            }
+            return object : Publisher<T> {
+                override fun subscribe(subscriber: Subscriber<T>) {
+                    subscribe.accept(publisher, toSubscriber(subscriber))
+                }
+            }
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        fun <T> fromSubscriber(subscriber: Any): Subscriber<T> {
+            val adapted = unwrap(subscriber)
+            if (adapted is Subscriber<*>) {
+                return adapted as Subscriber<T>
+            }
+            return object : Subscriber<T> {
+                override fun onSubscribe(subscription: Subscription) {
+                    onSubscribe.accept(subscriber, proxy(subscriptionType, subscription))
+                }
+
+                override fun onNext(item: T) {
+                    onNext.accept(subscriber, item)
+                }
+
+                override fun onError(throwable: Throwable) {
+                    onError.accept(subscriber, throwable)
+                }
+
+                override fun onComplete() {
+                    onComplete.accept(subscriber)
+                }
+            }
+        }
+
+        private fun fromSubscription(subscription: Any): Subscription {
+            val adapted = unwrap(subscription)
+            if (adapted is Subscription) {
+                return adapted
+            }
+            return object : Subscription {
+                override fun request(n: Long) {
+                    request.accept(subscription, n)
+                }
+
+                override fun cancel() {
+                    cancel.accept(subscription)
+                }
+            }
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        private fun <P> proxy(type: Class<*>, target: Any): P {
+            val loader = type.classLoader ?: Bridge::class.java.classLoader
+            return Proxy.newProxyInstance(loader, arrayOf(type), Adapted(target)) as P
+        }
+
+        private fun unwrap(foreign: Any): Any? {
+            if (!Proxy.isProxyClass(foreign.javaClass)) {
+                return null
+            }
+            return (Proxy.getInvocationHandler(foreign) as? Adapted)?.target
+        }
+
+        /**
+         * Foreign interface implemented by one of our Publisher, Subscriber, Subscription or Processor
+         */
+        private inner class Adapted(val target: Any) : InvocationHandler {
+            @Suppress("UNCHECKED_CAST")
+            override fun invoke(proxy: Any, method: Method, args: Array<out Any?>?): Any? {
+                val arg = args?.getOrNull(0)
+                when (method.name) {
+                    "subscribe" -> (target as Publisher<Any?>).subscribe(fromSubscriber(arg!!))
+                    "onSubscribe" -> (target as Subscriber<Any?>).onSubscribe(fromSubscription(arg!!))
+                    "onNext" -> (target as Subscriber<Any?>).onNext(arg)
+                    "onError" -> (target as Subscriber<Any?>).onError(arg as Throwable)
+                    "onComplete" -> (target as Subscriber<Any?>).onComplete()
+                    "request" -> (target as Subscription).request(arg as Long)
+                    "cancel" -> (target as Subscription).cancel()
+                    "equals" -> return proxy === arg
+                    "hashCode" -> return System.identityHashCode(proxy)
+                    "toString" -> return "Adapted($target)"
+                    else -> throw UnsupportedOperationException(method.toString())
+                }
+                return null
+            }
+        }
+
+        companion object {
+            /**
+             * @return bridge to the interfaces of the given prefix (package or enclosing class), or null if not found
+             */
+            internal fun load(prefix: String): Bridge? {
+                return try {
+                    Bridge(Class.forName(prefix + "Publisher"), Class.forName(prefix + "Subscriber"),
+                            Class.forName(prefix + "Subscription"), Class.forName(prefix + "Processor"))
+                } catch (e: ReflectiveOperationException) {
+                    null
+                } catch (e: LambdaConversionException) {
+                    null
+                }
+            }
+
+            /**
+             * @return instance of the functional interface calling the foreign method, its receiver being the first argument
+             */
+            private inline fun <reified I : Any> bind(name: String, method: Method): I {
+                val lookup = MethodHandles.lookup()
+                val handle = lookup.unreflect(method)
+                val implemented = I::class.java.methods.single { it.name == name }
+                val site = LambdaMetafactory.metafactory(lookup, name, methodType(I::class.java),
+                        methodType(implemented.returnType, implemented.parameterTypes), handle, handle.type())
+                return site.target.invokeWithArguments() as I
+            }
+        }
+    }
+}
+
+/**
+ * Processor converting every received item into a fresh working context with the pipeline.
+ * Items are requested from upstream only as downstream demands them, at most batchSize at a time,
+ * so a slow downstream throttles the upstream instead of filling a queue.
+ * Items of a micro-batch are converted sequentially, or concurrently on the executor if any,
+ * and are always emitted in the order they were received
+ * @param pipeline - converter of items
+ * @param contextFx - creates a working context per item
+ * @param batchSize - maximal number of items requested from upstream at once
+ * @param executor - executor converting items of a batch concurrently, null to convert on the calling thread
+ */
+class UCFlowProcessor<T, C> @JvmOverloads constructor(
+        val pipeline: UBiPipeline<T, C>,
+        private val contextFx: () -> C,
+        val batchSize: Int = 1,
+        private val executor: Executor? = null
+) : UCFlow.Processor<T, C> {
+
+    private val lock = Any()
+    private val wip = AtomicInteger()
+    private var upstream: UCFlow.Subscription? = null
+    private var downstream: UCFlow.Subscriber<C>? = null
+    private var demand = 0L
+    private var requested = 0L
+    private var batch = ArrayList<T>(batchSize)
+    private var completed = false
+    private var error: Throwable? = null
+    private var rejected = false
+    private var terminated = false
+
+    init {
+        require(batchSize > 0, { "batchSize must be positive" })
+    }
+
+    override fun subscribe(subscriber: UCFlow.Subscriber<C>) {
+        val accepted = synchronized(lock) {
+            if (downstream == null) downstream = subscriber
+            downstream === subscriber
+        }
+        if (!accepted) {
+            subscriber.onSubscribe(Rejected)
+            subscriber.onError(IllegalStateException("Processor supports only one subscriber"))
+            return
+        }
+        subscriber.onSubscribe(Downstream())
+        drain()
+    }
+
+    override fun onSubscribe(subscription: UCFlow.Subscription) {
+        synchronized(lock) {
+            if (upstream != null || terminated) {
+                subscription.cancel()
+                return
+            }
+            upstream = subscription
+        }
+        drain()
+    }
+
+    override fun onNext(item: T) {
+        synchronized(lock) {
+            if (terminated) return
+            batch.add(item)
+            requested -= 1
+        }
+        drain()
+    }
+
+    override fun onError(throwable: Throwable) {
+        synchronized(lock) {
+            if (completed) return
+            error = throwable
+            completed = true
+        }
+        drain()
+    }
+
+    override fun onComplete() {
+        synchronized(lock) {
+            completed = true
+        }
+        drain()
+    }
+
+    private inner class Downstream : UCFlow.Subscription {
+        /**
+         * A non-positive request cancels upstream, and fails downstream once its current signal returns (rule 3.9)
+         */
+        override fun request(n: Long) {
+            if (n <= 0) {
+                val s = synchronized(lock) {
+                    if (terminated) return
+                    error = IllegalArgumentException("Non-positive request: " + n)
+                    completed = true
+                    rejected = true
+                    batch = ArrayList()
+                    upstream
+                }
+                s?.cancel()
+                drain()
+                return
+            }
+            synchronized(lock) {
+                demand = if (demand + n < 0) Long.MAX_VALUE else demand + n
+            }
+            drain()
+        }
+
+        override fun cancel() {
+            val s = synchronized(lock) {
+                terminated = true
+                batch = ArrayList()
+                upstream
+            }
+            s?.cancel()
+        }
+    }
+
+    private object Rejected : UCFlow.Subscription {
+        override fun request(n: Long) = Unit
+
+        override fun cancel() = Unit
+    }
+
+    /**
+     * Serializes signals to downstream and requests to upstream, whatever thread triggered them.
+     * A failing conversion fails downstream and cancels upstream, so the processor never stalls.
+     * A downstream throwing from onNext is considered cancelled: upstream is cancelled, and the downstream
+     * gets no further signal (rule 2.13)
+     */
+    private fun drain() {
+        if (wip.getAndIncrement() != 0) {
+            return
+        }
+        do {
+            try {
+                while (step()) {
+                }
+            } catch (e: Throwable) {
+                val s = synchronized(lock) { upstream }
+                try {
+                    fail(e)
+                } finally {
+                    s?.cancel()
+                }
+            }
+        } while (wip.decrementAndGet() != 0)
+    }
+
+    /**
+     * Performs one action: emitting a batch, terminating downstream or requesting upstream
+     * @return true if an action was performed
+     */
+    private fun step(): Boolean {
+        var toEmit: List<T>? = null
+        var toRequest = 0L
+        var terminate = false
+        synchronized(lock) {
+            if (terminated || downstream == null) {
+                return false
+            }
+            if (batch.isNotEmpty() && (requested == 0L || batch.size >= batchSize || completed)) {
+                toEmit = batch
+                batch = ArrayList(batchSize)
+                demand -= toEmit!!.size
+            } else if (completed && batch.isEmpty()) {
+                terminated = true
+                terminate = true
+            } else if (!completed && requested == 0L && demand > 0 && upstream != null) {
+                toRequest = Math.min(demand, batchSize.toLong())
+                requested = toRequest
+            } else {
+                return false
+            }
+        }
+        val items = toEmit
+        when {
+            items != null -> emit(items)
+            terminate -> terminate()
+            else -> upstream!!.request(toRequest)
+        }
+        return true
+    }
+
+    private fun emit(items: List<T>) {
+        val results = convert(items)
+        val s = downstream!!
+        for (r in results) {
+            if (synchronized(lock) { terminated || rejected }) {
+                return
+            }
+            try {
+                s.onNext(r)
+            } catch (e: Throwable) {
+                // terminated before drain() handles the failure, so that it only cancels upstream
+                synchronized(lock) {
+                    terminated = true
+                    batch = ArrayList()
+                }
+                throw e
+            }
+        }
+    }
+
+    private fun convert(items: List<T>): List<C> {
+        val exec = executor
+        if (exec == null || items.size == 1) {
+            return items.map { convert(it) }
+        }
+        val futures = items.map { t -> CompletableFuture.supplyAsync(Supplier { convert(t) }, exec) }
+        try {
+            return futures.map { it.join() }
+        } catch (e: CompletionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    private fun convert(t: T): C {
+        val ctx = contextFx()
+        pipeline.consume(t, ctx)
+        return ctx
+    }
+
+    private fun terminate() {
+        val e = synchronized(lock) { error }
+        if (e != null) downstream!!.onError(e) else downstream!!.onComplete()
+    }
+
+    private fun fail(e: Throwable) {
+        val s = synchronized(lock) {
+            if (terminated) return
+            terminated = true
+            downstream
+        }
+        s?.onError(e)
+    }
+}
@@ -0,0 +1,127 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UBiPipeline
+import com.shaposhnyk.unilines.UField
+import java.lang.reflect.Field
+import java.lang.reflect.Modifier
+import java.util.*
+
+/**
+ * Heap footprint estimator for pipelines.
+ * Sizes are estimated for a 64-bit JVM with compressed oops, by walking the object graph with reflection.
+ * Objects reachable from several nodes or pipelines are accounted once, at their first visit,
+ * so the footprint of a pipeline is what it adds to the already estimated ones
+ */
+class UCFootprint(private val maxDepth: Int = 8) {
+
+    /**
+     * Footprint of a single node, excluding its sub-pipelines
+     * @param path - external names from the root pipeline to the node, separated by '/'
+     */
+    data class Node(val path: String, val field: UField, val bytes: Long)
+
+    /**
+     * Footprint of a pipeline, with its nodes in tree order
+     */
+    data class Report(val pipeline: UBiPipeline<*, *>, val nodes: List<Node>) {
+        fun bytes(): Long = nodes.map { it.bytes }.sum()
+    }
+
+    private val visited = Collections.newSetFromMap(IdentityHashMap<Any, Boolean>())
+
+    /**
+     * @return footprint report of the pipeline
+     */
+    fun estimate(pipeline: UBiPipeline<*, *>): Report {
+        val nodes = mutableListOf<Node>()
+        estimateNode(pipeline, "", nodes)
+        return Report(pipeline, nodes)
+    }
+
+    /**
+     * @return footprint reports of given pipelines, shared objects being accounted in the first one only
+     */
+    fun estimateAll(pipelines: Collection<UBiPipeline<*, *>>): List<Report> = pipelines.map { estimate(it) }
+
+    private fun estimateNode(node: UBiPipeline<*, *>, parentPath: String, nodes: MutableList<Node>) {
+        val path = if (parentPath.isEmpty()) node.externalName() else parentPath + "/" + node.externalName()
+        val subNodes = Collections.newSetFromMap(IdentityHashMap<Any, Boolean>())
+        subNodes.addAll(node.fields())
+
+        nodes.add(Node(path, node, sizeOf(node, subNodes, 0)))
+        node.fields().forEach { estimateNode(it, path, nodes) }
+    }
+
+    private fun sizeOf(obj: Any?, stopAt: Set<Any>, depth: Int): Long {
+        if (obj == null || depth > maxDepth || stopAt.contains(obj) || !visited.add(obj) || isShared(obj)) {
+            return 0
+        }
+        val type = obj.javaClass
+        if (type.isArray) {
+            return arraySize(obj, stopAt, depth)
+        }
+
+        var size = OBJECT_HEADER
+        var refs = 0L
+        instanceFields(type).forEach { fld ->
+            size += primitiveSize(fld.type)
+            if (!fld.type.isPrimitive) {
+                refs += sizeOf(valueOf(fld, obj), stopAt, depth + 1)
+            }
+        }
+        return align(size) + refs
+    }
+
+    private fun arraySize(array: Any, stopAt: Set<Any>, depth: Int): Long {
+        val length = java.lang.reflect.Array.getLength(array)
+        val componentType = array.javaClass.componentType
+        val shallow = align(ARRAY_HEADER + length * primitiveSize(componentType))
+        if (componentType.isPrimitive) {
+            return shallow
+        }
+        return shallow + (0 until length)
+                .map { sizeOf(java.lang.reflect.Array.get(array, it), stopAt, depth + 1) }
+                .sum()
+    }
+
+    private fun valueOf(fld: Field, obj: Any): Any? {
+        return try {
+            fld.isAccessible = true
+            fld.get(obj)
+        } catch (e: RuntimeException) {
+            null // inaccessible JDK internals are estimated as shallow
+        }
+    }
+
+    private fun isShared(obj: Any): Boolean {
+        return obj is Class<*> || obj is ClassLoader || obj is Thread || obj is Enum<*>
+    }
+
+    companion object {
+        private const val OBJECT_HEADER = 12L
+        private const val ARRAY_HEADER = 16L
+        private const val REFERENCE = 4L
+
+        private fun align(size: Long) = (size + 7) / 8 * 8
+
+        private fun primitiveSize(type: Class<*>): Long {
+            return when (type) {
+                java.lang.Long.TYPE, java.lang.Double.TYPE -> 8
+                Integer.TYPE, java.lang.Float.TYPE -> 4
+                java.lang.Short.TYPE, Character.TYPE -> 2
+                java.lang.Byte.TYPE, java.lang.Boolean.TYPE -> 1
+                else -> REFERENCE
+            }
+        }
+
+        private fun instanceFields(type: Class<*>): List<Field> {
+            val fields = mutableListOf<Field>()
+            var current: Class<*>? = type
+            while (current != null) {
+                current.declaredFields.filterTo(fields) { !Modifier.isStatic(it.modifiers) }
+                current = current.superclass
+            }
+            return fields
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.shaposhnyk.unilines.builders
+
+/*
+ * Single abstract method types called by pipeline nodes on the hot path.
+ * Unlike Kotlin function types, they take and return exactly what is needed (no bridge method, no Unit result),
+ * and builder adapters (composition and field binding included) implement them directly,
+ * so a node reaches user code through a single interface call. Plain Kotlin lambdas are wrapped once,
+ * when the node is created. Object and flatMap nodes call their usual fields consumer as a final class,
+ * other consumers (leaf fields) being called through the interface
+ */
+
+@FunctionalInterface
+interface UCConsumer<in T, in C> {
+    fun accept(t: T?, c: C)
+
+    companion object {
+        /**
+         * @return the function itself if it is already a UCConsumer, or a UCConsumer calling it
+         */
+        fun <T, C> of(fx: (T?, C) -> Unit): UCConsumer<T, C> {
+            @Suppress("UNCHECKED_CAST")
+            return fx as? UCConsumer<T, C> ?: KConsumer(fx)
+        }
+    }
+}
+
+@FunctionalInterface
+interface UCExtractor<in T, out R> {
+    fun extract(t: T?): R?
+
+    companion object {
+        /**
+         * @return the function itself if it is already a UCExtractor, or a UCExtractor calling it
+         */
+        fun <T, R> of(fx: (T?) -> R?): UCExtractor<T, R> {
+            @Suppress("UNCHECKED_CAST")
+            return fx as? UCExtractor<T, R> ?: KExtractor(fx)
+        }
+    }
+}
+
+@FunctionalInterface
+interface UCWriter<in R, in C> {
+    fun write(value: R?, c: C)
+
+    companion object {
+        /**
+         * @return the function itself if it is already a UCWriter, or a UCWriter calling it
+         */
+        fun <R, C> of(fx: (R?, C) -> Unit): UCWriter<R, C> {
+            @Suppress("UNCHECKED_CAST")
+            return fx as? UCWriter<R, C> ?: KWriter(fx)
+        }
+    }
+}
+
+/**
+ * Kotlin function called as a UCConsumer
+ */
+internal data class KConsumer<in T, in C>(val fx: (T?, C) -> Unit) : UCConsumer<T, C> {
+    override fun accept(t: T?, c: C) = fx(t, c)
+}
+
+/**
+ * Kotlin function called as a UCExtractor
+ */
+internal data class KExtractor<in T, out R>(val fx: (T?) -> R?) : UCExtractor<T, R> {
+    override fun extract(t: T?): R? = fx(t)
+}
+
+/**
+ * Kotlin function called as a UCWriter
+ */
+internal data class KWriter<in R, in C>(val fx: (R?, C) -> Unit) : UCWriter<R, C> {
+    override fun write(value: R?, c: C) = fx(value, c)
+}
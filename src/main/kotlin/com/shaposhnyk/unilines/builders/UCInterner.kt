@@ -0,0 +1,49 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UBiPipeline
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Pipeline interner. Replaces structurally identical pipeline nodes by a single canonical instance,
+ * so similar object types can share their common fields.
+ * Two nodes are identical if they have the same field and same extractor/writer references,
+ * sub-pipelines being interned before their parents
+ */
+class UCInterner {
+    private val nodes = ConcurrentHashMap<UBiPipeline<*, *>, UBiPipeline<*, *>>()
+
+    /**
+     * @return canonical instance of the pipeline, with all its sub-pipelines interned
+     */
+    fun <T, C> intern(pipeline: UBiPipeline<T, C>): UBiPipeline<T, C> {
+        val rebuilt = withInternedFields(pipeline)
+        @Suppress("UNCHECKED_CAST")
+        return (nodes.putIfAbsent(rebuilt, rebuilt) ?: rebuilt) as UBiPipeline<T, C>
+    }
+
+    /**
+     * @return number of distinct interned nodes
+     */
+    fun size(): Int = nodes.size
+
+    /**
+     * Forgets all interned nodes
+     */
+    fun clear() = nodes.clear()
+
+    private fun <T, C> withInternedFields(pipeline: UBiPipeline<T, C>): UBiPipeline<T, C> {
+        val fields = pipeline.fields()
+        if (fields.isEmpty()) {
+            return pipeline
+        }
+        val interned = fields.map { intern(it) }
+        if (interned.indices.all { interned[it] === fields[it] }) {
+            return pipeline
+        }
+        return when (pipeline) {
+            is UCObjects.ChainingBiPipeline<T, C> -> pipeline.withFields(interned)
+            is UCObjects.FlatChainingBiPipeline<T, C, *, *> -> pipeline.withFields(interned)
+            else -> pipeline
+        }
+    }
+}
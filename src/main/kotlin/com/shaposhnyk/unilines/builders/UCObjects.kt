@@ -3,6 +3,14 @@ package com.shaposhnyk.unilines.builders
 import com.shaposhnyk.unilines.UBiPipeline
 import com.shaposhnyk.unilines.UField
 import com.shaposhnyk.unilines.UTriConsumer
+import java.nio.file.Path
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.function.Function
+import java.util.function.ToLongFunction
 
 /**
  * Converting objects - converters composed from other converters.
@@ -15,7 +23,7 @@ class UCObjects {
          * @return hierarchical downstream builder, which accepts sub-fields of type UBiPipeline<T,C>
          */
         fun <T, C> of(f: UField): UHCBuilder<T, C, T, C> {
-            return UHCBuilder(f, { it }, { it })
+            return UHCBuilder(f, Identity.of(), Identity.of())
         }
     }
 
@@ -28,13 +36,28 @@ class UCObjects {
             private val downstreams: List<UBiPipeline<*, *>>,
             private val consumer: (T?, C) -> Unit
     ) : UField by f, UBiPipeline<T, C> {
+        private val target = UCConsumer.of(consumer)
+
+        // object nodes almost always feed their fields directly: a call to the final class keeps this site monomorphic
+        @Suppress("UNCHECKED_CAST")
+        private val fieldsConsumer = consumer as? FieldsConsumer<T, C, Any?, Any?>
+
         override fun fields(): List<UBiPipeline<*, *>> = downstreams
 
         override fun consume(sourceObj: T?, workingCtx: C) {
+            val event = if (UCFlightRecorder.armed.isOn) UCFlightRecorder.pipeline() else null
             try {
-                consumer(sourceObj, workingCtx)
+                val direct = fieldsConsumer
+                if (direct != null) {
+                    direct.accept(sourceObj, workingCtx)
+                } else {
+                    target.accept(sourceObj, workingCtx)
+                }
             } catch (e: RuntimeException) {
+                event?.failed = true
                 UCField.defaultErrorHandler(this, e)
+            } finally {
+                event?.commit(f, 1)
             }
         }
 
@@ -54,13 +77,273 @@ class UCObjects {
         fun postProcessJ(postProcessor: UTriConsumer<UField, UBiPipeline<*, *>, C>): ChainingBiPipeline<T, C> {
             return postProcess({ f, cnv, c -> postProcessor.accept(f, cnv, c) })
         }
+
+        /**
+         * @return function mapping the source object before it is fed to the fields, null if the consumer is not a FieldsConsumer
+         */
+        internal fun source(): Any? {
+            val c = fieldsConsumerOf(consumer)
+            return when (c) {
+                is FieldsConsumer<*, *, *, *> -> c.sFx
+                is ParallelFieldsConsumer<*, *, *, *> -> c.sFx
+                else -> null
+            }
+        }
+
+        /**
+         * @return guard checked on the mapped source object, null if none or if the consumer is not a FieldsConsumer
+         */
+        internal fun guard(): Any? {
+            val c = fieldsConsumerOf(consumer)
+            return when (c) {
+                is FieldsConsumer<*, *, *, *> -> c.guard
+                is ParallelFieldsConsumer<*, *, *, *> -> c.guard
+                else -> null
+            }
+        }
+
+        private fun fieldsConsumerOf(c: Any): Any = if (c is DeadlineScoped<*, *>) fieldsConsumerOf(c.consumer) else c
+
+        /**
+         * @return same pipeline with given sub-pipelines, or this if the consumer is not a FieldsConsumer
+         */
+        internal fun withFields(newDownstreams: List<UBiPipeline<*, *>>): ChainingBiPipeline<T, C> {
+            @Suppress("UNCHECKED_CAST")
+            val fields = newDownstreams as List<UBiPipeline<Any?, Any?>>
+            val rebuilt = withFields(consumer, fields) ?: return this
+            return ChainingBiPipeline(f, fields, rebuilt)
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        private fun withFields(c: (T?, C) -> Unit, fields: List<UBiPipeline<Any?, Any?>>): ((T?, C) -> Unit)? {
+            return when (c) {
+                is FieldsConsumer<*, *, *, *> -> (c as FieldsConsumer<T, C, Any?, Any?>).copy(fields = fields)
+                is ParallelFieldsConsumer<*, *, *, *> -> (c as ParallelFieldsConsumer<T, C, Any?, Any?>).copy(fields = fields)
+                is DeadlineScoped<*, *> -> {
+                    val scoped = c as DeadlineScoped<T, C>
+                    withFields(scoped.consumer, fields)?.let { scoped.copy(consumer = it) }
+                }
+                else -> null
+            }
+        }
+    }
+
+    /**
+     * Consumer which maps source object and working context, then feeds them to all the fields
+     * @param guard - checked on the mapped source object before anything else, null if none.
+     * If it rejects, the working context is not mapped and no field is fed
+     */
+    data class FieldsConsumer<in T, C, T1, C1>(
+            internal val sFx: (T?) -> T1?,
+            private val ctxFx: (C) -> C1,
+            val fields: List<UBiPipeline<T1, C1>>,
+            internal val guard: ((T1?) -> Boolean)? = null
+    ) : (T?, C) -> Unit, UCConsumer<T, C> {
+        private val source = UCExtractor.of(sFx)
+        @Suppress("UNCHECKED_CAST")
+        private val context = UCExtractor.of(ctxFx as (C?) -> C1?)
+        private val instrumented = UCField.instrumented(fields)
+
+        override fun invoke(t: T?, c: C) = accept(t, c)
+
+        @Suppress("UNCHECKED_CAST")
+        override fun accept(t: T?, c: C) {
+            val t1 = source.extract(t)
+            if (guard != null && !guard.invoke(t1)) {
+                return
+            }
+            val c1 = context.extract(c) as C1
+            val token = UCCancellation.current()
+            val fields = if (UCField.isInstrumented()) instrumented else fields
+            if (token == null) {
+                fields.forEach { f -> f.consume(t1, c1) }
+            } else {
+                fields.forEach { f ->
+                    token.check()
+                    f.consume(t1, c1)
+                }
+            }
+        }
+    }
+
+    /**
+     * Executor of sibling fields
+     * @param allFields - true if all the fields are parallel-safe, false if only marked ones
+     * @param bufferFx - creates an empty per-field buffer from the working context, null to write directly
+     * @param mergeFx - merges a per-field buffer into the working context
+     */
+    data class Parallelism<C>(
+            val executor: Executor,
+            val allFields: Boolean,
+            val bufferFx: ((C) -> C)? = null,
+            val mergeFx: ((C, C) -> Unit)? = null
+    )
+
+    /**
+     * Consumer which maps source object and working context, then feeds them to all the fields,
+     * parallel-safe fields being executed concurrently
+     * @param guard - same as for FieldsConsumer
+     */
+    data class ParallelFieldsConsumer<in T, C, T1, C1>(
+            internal val sFx: (T?) -> T1?,
+            private val ctxFx: (C) -> C1,
+            val fields: List<UBiPipeline<T1, C1>>,
+            private val parallelSafe: List<Boolean>,
+            private val parallelism: Parallelism<C1>,
+            internal val guard: ((T1?) -> Boolean)? = null
+    ) : (T?, C) -> Unit, UCConsumer<T, C> {
+        private val source = UCExtractor.of(sFx)
+        @Suppress("UNCHECKED_CAST")
+        private val context = UCExtractor.of(ctxFx as (C?) -> C1?)
+        private val instrumented = UCField.instrumented(fields)
+
+        override fun invoke(t: T?, c: C) = accept(t, c)
+
+        @Suppress("UNCHECKED_CAST")
+        override fun accept(t: T?, c: C) {
+            val t1 = source.extract(t)
+            if (guard != null && !guard.invoke(t1)) {
+                return
+            }
+            val c1 = context.extract(c) as C1
+            val token = UCCancellation.current()
+            token?.check()
+            val fields = if (UCField.isInstrumented()) instrumented else fields
+            val deadline = UCDeadline.current()
+            val bufferFx = parallelism.bufferFx
+            val mergeFx = parallelism.mergeFx
+            val contexts = if (bufferFx != null) fields.map { bufferFx(c1) } else fields.map { c1 }
+            // every field is fingerprinted apart, then appended in declaration order
+            val fingerprint = UCFingerprint.current()
+            val parts = if (fingerprint != null) fields.map { UCFingerprint.Accumulator() } else null
+            // lookups deferred into buffers have to be written before buffers are merged
+            val enclosingBatches = UCBatches.current()
+            val batches = if (enclosingBatches != null && bufferFx != null) UCBatches.open() else enclosingBatches
+            val stopped = AtomicBoolean()
+
+            val branches = fields.indices
+                    .filter { parallelSafe[it] }
+                    .map { i -> Branch {
+                        UCCancellation.attach(token, {
+                            token?.check()
+                            UCDeadline.at(deadline, {
+                                UCBatches.attach(batches, { consume(fields[i], t1, contexts[i], parts?.get(i)) })
+                            })
+                        })
+                        // a stop requested by the field is for the flatMap enclosing this object
+                        if (UCShortCircuit.armed.isOn && UCShortCircuit.take()) {
+                            stopped.set(true)
+                        }
+                    } }
+            var failure: RuntimeException? = null
+            try {
+                // the last branch runs in this thread, which has to wait anyway
+                branches.dropLast(1).forEach { it.submitTo(parallelism.executor) }
+                branches.lastOrNull()?.run()
+                fields.indices
+                        .filter { !parallelSafe[it] }
+                        .forEach { i -> token?.check(); consume(fields[i], t1, contexts[i], parts?.get(i)) }
+            } catch (e: RuntimeException) {
+                failure = e
+            }
+            // branches must be completed before leaving, even on failure
+            for (branch in branches) {
+                try {
+                    branch.join()
+                } catch (e: CompletionException) {
+                    failure = failure ?: e.cause as? RuntimeException ?: e
+                }
+            }
+            if (batches != null && batches !== enclosingBatches) {
+                try {
+                    batches.flush()
+                } finally {
+                    UCBatches.close(batches)
+                }
+            }
+            if (stopped.get()) {
+                UCShortCircuit.stop()
+            }
+            if (failure != null) {
+                throw failure
+            }
+            if (mergeFx != null) {
+                contexts.forEach { b -> mergeFx(b, c1) }
+            }
+            if (fingerprint != null && parts != null) {
+                parts.forEach { fingerprint.append(it) }
+            }
+        }
+
+        private fun consume(field: UBiPipeline<T1, C1>, t1: T1?, c1: C1, part: UCFingerprint.Accumulator?) {
+            if (part != null) {
+                UCFingerprint.into(part, { field.consume(t1, c1) })
+            } else {
+                field.consume(t1, c1)
+            }
+        }
+    }
+
+    /**
+     * Concurrent branch of a parallel object, run once: by a thread of the executor, or by the thread joining it
+     * if it is still queued. Joining threads wait only for branches already running, so objects nested
+     * in parallel objects do not exhaust a bounded executor with threads waiting for queued work
+     */
+    private class Branch(private val body: () -> Unit) : Runnable {
+        private val claimed = AtomicBoolean()
+        private val done = CompletableFuture<Unit>()
+
+        fun submitTo(executor: Executor) {
+            try {
+                executor.execute(this)
+            } catch (e: RejectedExecutionException) {
+                // run by the joining thread
+            }
+        }
+
+        override fun run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return
+            }
+            try {
+                body()
+                done.complete(Unit)
+            } catch (e: Throwable) {
+                done.completeExceptionally(e)
+            }
+        }
+
+        /**
+         * @throws CompletionException if the branch failed
+         */
+        fun join() {
+            run()
+            done.join()
+        }
+    }
+
+    /**
+     * Consumer which feeds an item of an iterable to all the fields
+     */
+    data class FlatFieldsConsumer<T, C>(val fields: List<UBiPipeline<T, C>>) : (T, C) -> Unit, UCConsumer<T, C> {
+        private val instrumented = UCField.instrumented(fields)
+
+        override fun invoke(t: T, c: C) = accept(t, c)
+
+        override fun accept(t: T?, c: C) {
+            val fields = if (UCField.isInstrumented()) instrumented else fields
+            fields.forEach { d ->
+                d.consume(t, c)
+            }
+        }
     }
 
     data class UCHFlatBuilder<in T_IN, C_IN, T_OUT, C_OUT>(
             private val f: UField,
             private val sFx: (T_IN?) -> Iterable<T_OUT>,
             private val ctxFx: (C_IN) -> C_OUT,
-            private val downstreams: MutableList<UBiPipeline<T_OUT, C_OUT>> = mutableListOf()
+            private val downstreams: MutableList<UBiPipeline<T_OUT, C_OUT>> = mutableListOf(),
+            private val budgetMillis: Long = -1
     ) : ComposingBuilder<T_IN, C_IN, T_OUT, C_OUT> {
 
         override fun fields(): List<UBiPipeline<*, *>> = downstreams.toList()
@@ -70,12 +353,192 @@ class UCObjects {
             return this
         }
 
+        /**
+         * The built pipeline will be executed within a time budget, or within what is left of the current deadline
+         * if it is shorter. Fields with a deadline (see ExtractingBuilder.withDeadline()) see the remaining time.
+         * The budget itself abandons nothing: fields without a deadline run to completion even once it is passed
+         */
+        fun withDeadline(budgetMillis: Long): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return copy(budgetMillis = budgetMillis)
+        }
+
+        /**
+         * Items before the offset are skipped, without being fed to the fields
+         */
+        fun offset(offset: Long): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> = slice(offset, Long.MAX_VALUE)
+
+        /**
+         * At most limit items are fed to the fields, the source not being pulled any further.
+         * Sources implementing UCLimitedSource are told the number of items needed (offset + limit)
+         */
+        fun limit(limit: Long): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> = slice(0, limit)
+
+        /**
+         * Only the first item is fed to the fields
+         */
+        fun first(): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> = limit(1)
+
+        /**
+         * Only the k first items in key order are fed to the fields, in that order (ties in source order).
+         * Items are selected with a bounded heap, so memory and conversion cost are proportional to k
+         * @param keyFx - cheap sort key extractor
+         */
+        fun <K> topK(k: Int, keyFx: (T_OUT) -> K, comparator: Comparator<in K>): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return withSource(Composed(sFx, TopK(k, keyFx, comparator)))
+        }
+
+        fun <K : Comparable<K>> topK(k: Int, keyFx: (T_OUT) -> K): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return topK(k, keyFx, naturalOrder<K>())
+        }
+
+        fun <K> topKJ(k: Int, keyFx: Function<T_OUT, K>, comparator: Comparator<in K>): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return topK(k, keyFx::apply, comparator)
+        }
+
+        /**
+         * Items are fed to the fields in key order (ties in source order), whatever their number.
+         * At most maxItems items are held in memory: beyond that, sorted runs are spilled to temporary files
+         * using the codec, then merged while items are fed to the fields
+         * @param directory - directory of temporary files, null for the default temporary directory
+         */
+        @JvmOverloads
+        fun <K> sorted(keyFx: (T_OUT) -> K, comparator: Comparator<in K>, codec: UCCodec<T_OUT>,
+                       maxItems: Int, directory: Path? = null): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return withSource(Composed(sFx, ExternalSorted(keyFx, comparator, codec, maxItems, directory)))
+        }
+
+        @JvmOverloads
+        fun <K> sortedJ(keyFx: Function<T_OUT, K>, comparator: Comparator<in K>, codec: UCCodec<T_OUT>,
+                        maxItems: Int, directory: Path? = null): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return sorted(keyFx::apply, comparator, codec, maxItems, directory)
+        }
+
+        /**
+         * Items are grouped by key and reduced (see UCAggregationBuilder), groups being fed to the fields instead of items
+         */
+        fun <K> groupBy(keyFx: (T_OUT) -> K): UCAggregationBuilder<T_IN, C_IN, T_OUT, C_OUT, K> {
+            return UCAggregationBuilder(f, sFx, ctxFx, budgetMillis, keyFx)
+        }
+
+        fun <K> groupByJ(keyFx: Function<T_OUT, K>): UCAggregationBuilder<T_IN, C_IN, T_OUT, C_OUT, K> {
+            return groupBy(keyFx::apply)
+        }
+
+        /**
+         * Only the first item of every key is fed to the fields, duplicates being dropped before any conversion.
+         * Keys seen are held in an open addressing hash set
+         */
+        fun distinct(keyFx: (T_OUT) -> Any?): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return withSource(Composed(sFx, Distinct(keyFx, ::OpenHashSeen)))
+        }
+
+        fun distinctJ(keyFx: Function<T_OUT, Any?>): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return distinct(keyFx::apply)
+        }
+
+        /**
+         * Same as distinct(), for long keys held in a primitive hash set.
+         * Inlined, so the key of a Kotlin lambda is not boxed either
+         */
+        inline fun distinctLong(crossinline keyFx: (T_OUT) -> Long): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return distinctLongJ(ToLongFunction { keyFx(it) })
+        }
+
+        fun distinctLongJ(keyFx: ToLongFunction<T_OUT>): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return withSource(Composed(sFx, DistinctLong(keyFx)))
+        }
+
+        /**
+         * Same as distinct(), with keys seen held in a Bloom filter of fixed size (about 10 bits per key for 1%):
+         * memory does not depend on the number of items, but unique items are dropped at the false positive rate
+         * @param expectedItems - number of unique keys the filter is sized for
+         */
+        @JvmOverloads
+        fun distinctApprox(keyFx: (T_OUT) -> Any?, expectedItems: Long,
+                           falsePositiveRate: Double = 0.01): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return withSource(Composed(sFx, Distinct(keyFx, BloomSeenFx(expectedItems, falsePositiveRate))))
+        }
+
+        @JvmOverloads
+        fun distinctApproxJ(keyFx: Function<T_OUT, Any?>, expectedItems: Long,
+                            falsePositiveRate: Double = 0.01): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return distinctApprox(keyFx::apply, expectedItems, falsePositiveRate)
+        }
+
+        /**
+         * Items are paired with the items of a second source having the same key, (item, match) pairs being fed
+         * to the fields of the returned builder. Both sources must be sorted by key: they are merged in one pass,
+         * holding only the matches of the current key in memory
+         * @param rightFx - extracts the second source from the source object
+         * @param keepUnmatched - true to feed (item, null) for items without matches (left join), false to skip them
+         */
+        @JvmOverloads
+        fun <R, K> mergeJoin(rightFx: (@UnsafeVariance T_IN?) -> Iterable<R>,
+                             leftKeyFx: (T_OUT) -> K,
+                             rightKeyFx: (R) -> K,
+                             comparator: Comparator<in K>,
+                             keepUnmatched: Boolean = true): UCHFlatBuilder<T_IN, C_IN, Pair<T_OUT, R?>, C_OUT> {
+            return joined(MergeJoined(sFx, rightFx, leftKeyFx, rightKeyFx, comparator, keepUnmatched))
+        }
+
+        @JvmOverloads
+        fun <R, K : Comparable<K>> mergeJoin(rightFx: (@UnsafeVariance T_IN?) -> Iterable<R>,
+                                             leftKeyFx: (T_OUT) -> K,
+                                             rightKeyFx: (R) -> K,
+                                             keepUnmatched: Boolean = true): UCHFlatBuilder<T_IN, C_IN, Pair<T_OUT, R?>, C_OUT> {
+            return mergeJoin(rightFx, leftKeyFx, rightKeyFx, naturalOrder<K>(), keepUnmatched)
+        }
+
+        @JvmOverloads
+        fun <R, K> mergeJoinJ(rightFx: Function<@UnsafeVariance T_IN?, Iterable<R>>,
+                              leftKeyFx: Function<T_OUT, K>,
+                              rightKeyFx: Function<R, K>,
+                              comparator: Comparator<in K>,
+                              keepUnmatched: Boolean = true): UCHFlatBuilder<T_IN, C_IN, Pair<T_OUT, R?>, C_OUT> {
+            return mergeJoin(rightFx::apply, leftKeyFx::apply, rightKeyFx::apply, comparator, keepUnmatched)
+        }
+
+        /**
+         * Same as mergeJoin(), for a small second source, not necessarily sorted:
+         * it is loaded into a hash table, then items are streamed
+         */
+        @JvmOverloads
+        fun <R, K> hashJoin(rightFx: (@UnsafeVariance T_IN?) -> Iterable<R>,
+                            leftKeyFx: (T_OUT) -> K,
+                            rightKeyFx: (R) -> K,
+                            keepUnmatched: Boolean = true): UCHFlatBuilder<T_IN, C_IN, Pair<T_OUT, R?>, C_OUT> {
+            return joined(HashJoined(sFx, rightFx, leftKeyFx, rightKeyFx, keepUnmatched))
+        }
+
+        @JvmOverloads
+        fun <R, K> hashJoinJ(rightFx: Function<@UnsafeVariance T_IN?, Iterable<R>>,
+                             leftKeyFx: Function<T_OUT, K>,
+                             rightKeyFx: Function<R, K>,
+                             keepUnmatched: Boolean = true): UCHFlatBuilder<T_IN, C_IN, Pair<T_OUT, R?>, C_OUT> {
+            return hashJoin(rightFx::apply, leftKeyFx::apply, rightKeyFx::apply, keepUnmatched)
+        }
+
+        private fun <R> joined(newSFx: (@UnsafeVariance T_IN?) -> Iterable<Pair<T_OUT, R?>>): UCHFlatBuilder<T_IN, C_IN, Pair<T_OUT, R?>, C_OUT> {
+            return UCHFlatBuilder(f, newSFx, ctxFx, budgetMillis = budgetMillis)
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        private fun slice(offset: Long, limit: Long): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            val current = sFx
+            if (current is Composed<*, *, *> && current.second is Sliced<*>) {
+                val sliced = (current.second as Sliced<T_OUT>).slice(offset, limit)
+                return withSource(Composed(current.first as (T_IN?) -> Iterable<T_OUT>, sliced))
+            }
+            return withSource(Composed(sFx, Sliced<T_OUT>(offset, limit)))
+        }
+
+        private fun withSource(newSFx: (@UnsafeVariance T_IN?) -> Iterable<T_OUT>): UCHFlatBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+            return copy(sFx = newSFx)
+        }
+
         override fun build(): UBiPipeline<T_IN, C_IN> {
-            return FlatChainingBiPipeline(f, downstreams.toList(), sFx, ctxFx, { t, c ->
-                downstreams.forEach { d ->
-                    d.consume(t, c)
-                }
-            })
+            val fields = downstreams.toList()
+            return FlatChainingBiPipeline(f, fields, sFx, ctxFx, FlatFieldsConsumer(fields), budgetMillis)
         }
     }
 
@@ -86,25 +549,90 @@ class UCObjects {
     data class FlatChainingBiPipeline<in T_IN, C_IN, T_OUT, C_OUT>(
             private val f: UField,
             private val downstreams: List<UBiPipeline<*, *>>,
-            private val sFx: (T_IN?) -> Iterable<T_OUT>,
+            internal val sFx: (T_IN?) -> Iterable<T_OUT>,
             private val ctxFx: (C_IN) -> C_OUT,
-            private val consumer: (T_OUT, C_OUT) -> Unit
+            private val consumer: (T_OUT, C_OUT) -> Unit,
+            private val budgetMillis: Long = -1
     ) : UField by f, UBiPipeline<T_IN, C_IN> {
+        @Suppress("UNCHECKED_CAST")
+        private val target = UCConsumer.of(consumer as (T_OUT?, C_OUT) -> Unit)
+        @Suppress("UNCHECKED_CAST")
+        private val source = UCExtractor.of(sFx as (T_IN?) -> Iterable<T_OUT>?)
+        @Suppress("UNCHECKED_CAST")
+        private val context = UCExtractor.of(ctxFx as (C_IN?) -> C_OUT?)
+
+        // flatMaps almost always feed their fields directly: a call to the final class keeps this site monomorphic
+        private val fieldsConsumer = consumer as? FlatFieldsConsumer<T_OUT, C_OUT>
+
+        // batching window opened only for the flatMaps feeding batching fields
+        private val batching = UCBatches.usedBy(downstreams)
 
         override fun fields(): List<UBiPipeline<*, *>> = downstreams
 
         override fun consume(sourceObj: T_IN?, workingCtx: C_IN) {
+            if (budgetMillis >= 0) {
+                UCDeadline.at(UCDeadline.deadlineOf(budgetMillis), { consumeItems(sourceObj, workingCtx) })
+            } else {
+                consumeItems(sourceObj, workingCtx)
+            }
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        private fun consumeItems(sourceObj: T_IN?, workingCtx: C_IN) {
             var cnt = 0
+            val event = if (UCFlightRecorder.armed.isOn) UCFlightRecorder.pipeline() else null
+            val batches = if (batching) UCBatches.open() else null
             try {
-                val t1s = sFx(sourceObj)
-                val c1 = ctxFx(workingCtx)
-                t1s.forEach { it ->
-                    cnt += 1
-                    consumer(it, c1)
+                val t1s = source.extract(sourceObj)!!
+                val outerStop = UCShortCircuit.armed.isOn && UCShortCircuit.take()
+                var items: Iterator<T_OUT>? = null
+                try {
+                    val c1 = context.extract(workingCtx) as C_OUT
+                    val direct = fieldsConsumer
+                    val token = UCCancellation.current()
+                    // eager stages (top-K, sort, group-by...) read their whole source here
+                    items = t1s.iterator()
+                    while (items.hasNext()) {
+                        token?.check()
+                        cnt += 1
+                        if (direct != null) {
+                            direct.accept(items.next(), c1)
+                        } else {
+                            target.accept(items.next(), c1)
+                        }
+                        if (UCShortCircuit.armed.isOn && UCShortCircuit.take()) {
+                            break
+                        }
+                    }
+                } finally {
+                    // streaming sources (spill files, cursors...) are closed whether they are exhausted, abandoned or failed
+                    closeSource(t1s, items)
+                    if (outerStop) {
+                        UCShortCircuit.stop()
+                    }
                 }
+                batches?.flush()
             } catch (e: RuntimeException) {
+                event?.failed = true
                 UCField.defaultErrorHandler(this, e, cnt)
+            } finally {
+                if (batches != null) {
+                    UCBatches.close(batches)
+                }
+                event?.commit(f, cnt)
+            }
+        }
+
+        /**
+         * @return same pipeline with given sub-pipelines, or this if the consumer is not a FlatFieldsConsumer
+         */
+        internal fun withFields(newDownstreams: List<UBiPipeline<*, *>>): FlatChainingBiPipeline<T_IN, C_IN, T_OUT, C_OUT> {
+            if (consumer !is FlatFieldsConsumer<*, *>) {
+                return this
             }
+            @Suppress("UNCHECKED_CAST")
+            val fields = newDownstreams as List<UBiPipeline<T_OUT, C_OUT>>
+            return FlatChainingBiPipeline(f, fields, sFx, ctxFx, FlatFieldsConsumer(fields), budgetMillis)
         }
     }
 }
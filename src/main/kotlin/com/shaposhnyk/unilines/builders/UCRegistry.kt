@@ -0,0 +1,97 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UBiPipeline
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.function.Supplier
+
+/**
+ * Registry of lazily built pipelines, one per object type (K).
+ * A pipeline is built on first use, then cached, so rarely requested object types cost nothing at startup
+ * @param interner - optional interner, applied to every built pipeline
+ */
+class UCRegistry<K> @JvmOverloads constructor(private val interner: UCInterner? = null) {
+
+    private inner class Entry(private val key: K, private val supplier: () -> UBiPipeline<*, *>) {
+        @Volatile
+        var pipeline: UBiPipeline<*, *>? = null
+        @Volatile
+        var buildNanos: Long = -1
+
+        fun get(): UBiPipeline<*, *> {
+            val built = pipeline
+            if (built != null) {
+                return built
+            }
+            synchronized(this) {
+                return pipeline ?: build()
+            }
+        }
+
+        private fun build(): UBiPipeline<*, *> {
+            val start = System.nanoTime()
+            val built = supplier()
+            val frozen = if (interner != null) interner.intern(built) else built
+            buildNanos = System.nanoTime() - start
+            pipeline = frozen
+            return frozen
+        }
+
+        override fun toString(): String = "Entry($key)"
+    }
+
+    private val entries = ConcurrentHashMap<K, Entry>()
+
+    /**
+     * Registers a pipeline supplier for an object type, replacing the previous one
+     * @return current registry
+     */
+    fun register(key: K, supplier: () -> UBiPipeline<*, *>): UCRegistry<K> {
+        entries.put(key, Entry(key, supplier))
+        return this
+    }
+
+    fun registerJ(key: K, supplier: Supplier<out UBiPipeline<*, *>>): UCRegistry<K> {
+        return register(key, { supplier.get() })
+    }
+
+    /**
+     * @return pipeline of the object type, building it if needed
+     * @throws IllegalArgumentException if nothing is registered for the object type
+     */
+    fun <T, C> get(key: K): UBiPipeline<T, C> {
+        val entry = entries[key] ?: throw IllegalArgumentException("No pipeline registered for $key")
+        @Suppress("UNCHECKED_CAST")
+        return entry.get() as UBiPipeline<T, C>
+    }
+
+    /**
+     * @return true if pipeline of the object type is already built
+     */
+    fun isBuilt(key: K): Boolean = entries[key]?.pipeline != null
+
+    /**
+     * @return registered object types
+     */
+    fun keys(): Set<K> = entries.keys.toSet()
+
+    /**
+     * @return build time in nanoseconds of every already built pipeline
+     */
+    fun buildTimes(): Map<K, Long> {
+        return entries.filter { it.value.buildNanos >= 0 }
+                .mapValues { it.value.buildNanos }
+    }
+
+    /**
+     * Builds all registered pipelines in background
+     * @param executor - executor to build pipelines on, pipelines being built in parallel
+     * @return future completed once all pipelines are built
+     */
+    fun prebuild(executor: Executor): CompletableFuture<Void> {
+        val futures = entries.values
+                .map { CompletableFuture.runAsync(Runnable { it.get() }, executor) }
+        return CompletableFuture.allOf(*futures.toTypedArray())
+    }
+}
@@ -0,0 +1,98 @@
+package com.shaposhnyk.unilines.builders
+
+import java.util.function.BiConsumer
+import java.util.function.Function
+
+/**
+ * Working context of a multi-sink pipeline: one context per sink (Map for JSON, Element for XML, cache entry...).
+ * Fields bound to several sinks (see UCField.UExtracting.withWriters()) extract and decorate their value once,
+ * then write it into every sink, so several outputs cost one extraction pass
+ */
+class UCSinks private constructor(private val contexts: Array<Any?>) {
+
+    companion object {
+        @JvmStatic
+        fun of(vararg contexts: Any?): UCSinks = UCSinks(arrayOf(*contexts))
+
+        /**
+         * @return context mapper, mapping each sink context with the mapper of the sink, if any
+         * (to be used with ofContextMap() or mapC() for nested objects)
+         */
+        @JvmStatic
+        fun mapping(vararg mappers: UCSink.Mapper<*>): (UCSinks) -> UCSinks = SinksMapped(mappers.toList())
+    }
+
+    val size: Int
+        get() = contexts.size
+
+    operator fun get(index: Int): Any? = contexts[index]
+
+    @Suppress("UNCHECKED_CAST")
+    operator fun <C> get(sink: UCSink<C>): C = contexts[sink.index] as C
+
+    internal fun map(mappers: List<UCSink.Mapper<*>>): UCSinks {
+        val mapped = contexts.copyOf()
+        mappers.forEach { m -> mapped[m.index] = m.map(contexts[m.index]) }
+        return UCSinks(mapped)
+    }
+
+    override fun toString(): String = "UCSinks(${contexts.joinToString()})"
+}
+
+/**
+ * Sink of type C: position of its context in UCSinks
+ */
+data class UCSink<C>(val index: Int) {
+
+    /**
+     * Child context mapper of the sink
+     */
+    class Mapper<C> internal constructor(val index: Int, private val fx: (C) -> Any?) {
+        @Suppress("UNCHECKED_CAST")
+        internal fun map(c: Any?): Any? = fx(c as C)
+    }
+
+    /**
+     * @return writer into this sink, to be used with UCField.UExtracting.withWriters()
+     */
+    fun bind(writer: (Any?, C) -> Unit): (Any?, UCSinks) -> Unit = SinkBound(index, writer)
+
+    fun bindJ(writer: BiConsumer<Any, C>): (Any?, UCSinks) -> Unit = bind(JWriter(writer))
+
+    /**
+     * @return child context mapper of this sink, to be used with UCSinks.mapping()
+     */
+    fun <X> map(fx: (C) -> X): Mapper<C> = Mapper(index, fx)
+
+    fun <X> mapJ(fx: Function<C, X>): Mapper<C> = map(fx::apply)
+}
+
+/**
+ * Writer of a value into the context of a sink
+ */
+internal data class SinkBound<C>(val index: Int, val writer: (Any?, C) -> Unit) : (Any?, UCSinks) -> Unit, UCWriter<Any?, UCSinks> {
+    private val target = UCWriter.of(writer)
+
+    override fun invoke(value: Any?, c: UCSinks) = write(value, c)
+
+    @Suppress("UNCHECKED_CAST")
+    override fun write(value: Any?, c: UCSinks) = target.write(value, c[index] as C)
+}
+
+/**
+ * Writer of a value into several sinks, in order
+ */
+internal data class SinksFanOut(val writers: List<(Any?, UCSinks) -> Unit>) : (Any?, UCSinks) -> Unit, UCWriter<Any?, UCSinks> {
+    private val targets = writers.map { UCWriter.of(it) }
+
+    override fun invoke(value: Any?, c: UCSinks) = write(value, c)
+
+    override fun write(value: Any?, c: UCSinks) = targets.forEach { it.write(value, c) }
+}
+
+/**
+ * Context mapper of several sinks
+ */
+internal data class SinksMapped(val mappers: List<UCSink.Mapper<*>>) : (UCSinks) -> UCSinks {
+    override fun invoke(c: UCSinks): UCSinks = c.map(mappers)
+}
@@ -0,0 +1,156 @@
+package com.shaposhnyk.unilines.builders
+
+/**
+ * 64-bit hashing of values for probabilistic structures
+ */
+internal object Hashing {
+    /**
+     * @return well distributed 64-bit hash of the value. Strings are hashed over their 64-bit FNV-1a hash,
+     * other values over their hashCode()
+     */
+    fun hash64(value: Any?): Long {
+        return when (value) {
+            null -> 0L
+            is CharSequence -> {
+                var h = -0x340d631b7bdddcdbL
+                for (i in 0 until value.length) {
+                    h = (h xor value[i].toLong()) * 0x100000001b3L
+                }
+                mix(h)
+            }
+            is Long -> mix(value)
+            else -> mix(value.hashCode().toLong())
+        }
+    }
+
+    /**
+     * MurmurHash3 fmix64
+     */
+    fun mix(h: Long): Long {
+        var k = h
+        k = k xor (k ushr 33)
+        k *= -0xae502812aa7333L
+        k = k xor (k ushr 33)
+        k *= -0x3b314601e57a13adL
+        return k xor (k ushr 33)
+    }
+}
+
+/**
+ * HyperLogLog sketch, estimating the number of distinct values with 2^precision one-byte registers.
+ * Standard error is about 1.04 / sqrt(2^precision), 1.6% with the default precision
+ */
+class UCHyperLogLog @JvmOverloads constructor(val precision: Int = 12) {
+    private val registers: ByteArray
+
+    init {
+        require(precision in 4..18, { "precision must be in 4..18" })
+        registers = ByteArray(1 shl precision)
+    }
+
+    fun add(value: Any?) = addHash(Hashing.hash64(value))
+
+    internal fun addHash(hash: Long) {
+        val index = (hash ushr (64 - precision)).toInt()
+        val rank = Math.min(java.lang.Long.numberOfLeadingZeros(hash shl precision), 64 - precision) + 1
+        if (rank > registers[index]) {
+            registers[index] = rank.toByte()
+        }
+    }
+
+    /**
+     * Adds values of the other sketch (of the same precision) to this one
+     */
+    fun merge(other: UCHyperLogLog) {
+        require(other.precision == precision, { "precisions differ" })
+        for (i in registers.indices) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i]
+            }
+        }
+    }
+
+    /**
+     * @return estimated number of distinct values
+     */
+    fun estimate(): Long {
+        val m = registers.size.toDouble()
+        var sum = 0.0
+        var zeros = 0
+        for (r in registers) {
+            sum += 1.0 / (1L shl r.toInt())
+            if (r.toInt() == 0) zeros += 1
+        }
+        val alpha = when (registers.size) {
+            16 -> 0.673
+            32 -> 0.697
+            64 -> 0.709
+            else -> 0.7213 / (1 + 1.079 / m)
+        }
+        val raw = alpha * m * m / sum
+        if (raw <= 2.5 * m && zeros > 0) {
+            // small range correction: linear counting
+            return Math.round(m * Math.log(m / zeros))
+        }
+        return Math.round(raw)
+    }
+}
+
+/**
+ * Bloom filter: a set of values with no false negatives and a bounded rate of false positives,
+ * taking about 10 bits per value for a 1% false positive rate
+ * @param expectedItems - number of values the filter is sized for
+ * @param falsePositiveRate - false positive rate (0..1) once expectedItems values are added
+ */
+class UCBloomFilter @JvmOverloads constructor(val expectedItems: Long, val falsePositiveRate: Double = 0.01) {
+    private val bits: LongArray
+    private val size: Long
+    private val hashes: Int
+
+    init {
+        require(expectedItems > 0, { "expectedItems must be positive" })
+        require(falsePositiveRate > 0 && falsePositiveRate < 1, { "falsePositiveRate must be in 0..1" })
+        val m = Math.max(64L, Math.ceil(-expectedItems * Math.log(falsePositiveRate) / (Math.log(2.0) * Math.log(2.0))).toLong())
+        bits = LongArray(((m + 63) / 64).toInt())
+        size = bits.size * 64L
+        hashes = Math.max(1, Math.round(m.toDouble() / expectedItems * Math.log(2.0)).toInt())
+    }
+
+    /**
+     * Adds the value
+     * @return true if the value was not in the filter, false if it probably was
+     */
+    fun add(value: Any?): Boolean = addHash(Hashing.hash64(value))
+
+    fun mightContain(value: Any?): Boolean {
+        val hash = Hashing.hash64(value)
+        val h1 = hash.toInt()
+        val h2 = (hash ushr 32).toInt()
+        for (i in 1..hashes) {
+            val bit = index(h1 + i * h2)
+            if (bits[(bit ushr 6).toInt()] and (1L shl bit.toInt()) == 0L) {
+                return false
+            }
+        }
+        return true
+    }
+
+    internal fun addHash(hash: Long): Boolean {
+        // double hashing (Kirsch-Mitzenmacher)
+        val h1 = hash.toInt()
+        val h2 = (hash ushr 32).toInt()
+        var added = false
+        for (i in 1..hashes) {
+            val bit = index(h1 + i * h2)
+            val word = (bit ushr 6).toInt()
+            val mask = 1L shl bit.toInt()
+            if (bits[word] and mask == 0L) {
+                bits[word] = bits[word] or mask
+                added = true
+            }
+        }
+        return added
+    }
+
+    private fun index(combined: Int): Long = (combined.toLong() and 0x7fffffffL) % size
+}
@@ -0,0 +1,724 @@
+package com.shaposhnyk.unilines.builders
+
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.*
+import java.util.function.ToLongFunction
+
+/*
+ * Stages of flatMap sources (see UCHFlatBuilder): lazy Iterable to Iterable transformations,
+ * applied before items reach the fields
+ */
+
+/**
+ * Source able to limit the number of items it produces at its origin (size-limited LDAP search, SQL LIMIT...)
+ */
+interface UCLimitedSource<out T> : Iterable<T> {
+    /**
+     * @return source producing at most maxItems items
+     */
+    fun limitTo(maxItems: Long): Iterable<T>
+}
+
+/**
+ * Short-circuit signal of flatMaps: a field calling stop() ends iteration of the innermost running flatMap
+ * once its current item is consumed (find-first, etc)
+ */
+object UCShortCircuit {
+    private val stopped = ThreadLocal<Boolean?>()
+
+    /**
+     * On once stop() was called. Until then, flatMaps do not look for the signal
+     */
+    internal val armed = UCSwitch()
+
+    /**
+     * Requests the innermost running flatMap to stop after the current item
+     */
+    @JvmStatic
+    fun stop() {
+        armed.on()
+        stopped.set(true)
+    }
+
+    /**
+     * @return true if stop was requested, clearing the request
+     */
+    internal fun take(): Boolean {
+        if (stopped.get() == null) {
+            return false
+        }
+        stopped.remove()
+        return true
+    }
+}
+
+/**
+ * Closes a streaming source, once exhausted, abandoned before its end or failed
+ * @param iterator - iterator of the source, null if iterator() failed
+ */
+internal fun closeSource(items: Iterable<*>, iterator: Iterator<*>?) {
+    (iterator as? AutoCloseable)?.close()
+    if (items !== iterator) {
+        (items as? AutoCloseable)?.close()
+    }
+}
+
+/**
+ * Feeds every item of the source to the action, as eager stages do before producing their first item.
+ * Cancellation is checked between items, and the source is closed once drained or failed
+ */
+internal inline fun <T> drain(items: Iterable<T>, action: (T) -> Unit) {
+    val token = UCCancellation.current()
+    var iterator: Iterator<T>? = null
+    try {
+        iterator = items.iterator()
+        while (iterator.hasNext()) {
+            token?.check()
+            action(iterator.next())
+        }
+    } finally {
+        closeSource(items, iterator)
+    }
+}
+
+/**
+ * Skips offset items, then passes at most limit items. The source is not pulled once the limit is reached,
+ * and is told its limit if it is a UCLimitedSource
+ */
+internal data class Sliced<T>(val offset: Long, val limit: Long) : (Iterable<T>) -> Iterable<T> {
+    init {
+        require(offset >= 0 && limit >= 0, { "offset and limit must not be negative" })
+    }
+
+    override fun invoke(items: Iterable<T>): Iterable<T> {
+        val source = if (items is UCLimitedSource<T> && limit < Long.MAX_VALUE - offset) items.limitTo(offset + limit) else items
+        return SlicedIterable(source, offset, limit)
+    }
+
+    /**
+     * @return a slice of this slice
+     */
+    fun slice(offset: Long, limit: Long): Sliced<T> {
+        val newOffset = this.offset + Math.min(offset, this.limit)
+        val newLimit = Math.min(limit, this.limit - Math.min(offset, this.limit))
+        return Sliced(newOffset, newLimit)
+    }
+
+    private class SlicedIterable<T>(val source: Iterable<T>, val offset: Long, val limit: Long) : Iterable<T>, AutoCloseable {
+        override fun iterator(): Iterator<T> {
+            val items = source.iterator()
+            var skipped = 0L
+            while (skipped < offset && items.hasNext()) {
+                items.next()
+                skipped += 1
+            }
+            return object : Iterator<T>, AutoCloseable {
+                var taken = 0L
+                var closed = false
+
+                /**
+                 * The source is closed once the limit is reached and the next item is asked for,
+                 * so the last item can still rely on it (cursor-backed or lazy items)
+                 */
+                override fun hasNext(): Boolean {
+                    if (taken < limit) {
+                        return items.hasNext()
+                    }
+                    close()
+                    return false
+                }
+
+                override fun next(): T {
+                    if (taken >= limit) {
+                        throw NoSuchElementException()
+                    }
+                    taken += 1
+                    return items.next()
+                }
+
+                override fun close() {
+                    if (!closed) {
+                        closed = true
+                        closeSource(source, items)
+                    }
+                }
+            }
+        }
+
+        override fun close() {
+            (source as? AutoCloseable)?.close()
+        }
+    }
+}
+
+/**
+ * Keeps the k first items in key order (ties in arrival order) using a bounded heap,
+ * so only k items are retained, and only k items reach the fields
+ */
+internal data class TopK<T, K>(val k: Int, val keyFx: (T) -> K, val comparator: Comparator<in K>)
+    : (Iterable<T>) -> Iterable<T> {
+    init {
+        require(k >= 0, { "k must not be negative" })
+    }
+
+    private class Entry<out K, out T>(val key: K, val seq: Long, val item: T)
+
+    private val order = Comparator<Entry<K, T>> { a, b ->
+        val byKey = comparator.compare(a.key, b.key)
+        if (byKey != 0) byKey else java.lang.Long.compare(a.seq, b.seq)
+    }
+
+    override fun invoke(items: Iterable<T>): Iterable<T> = object : Iterable<T> {
+        override fun iterator(): Iterator<T> = select(items).iterator()
+    }
+
+    private fun select(items: Iterable<T>): List<T> {
+        if (k == 0) {
+            return listOf()
+        }
+        // worst entry first, to be replaced by a better one
+        val heap = PriorityQueue<Entry<K, T>>(k, order.reversed())
+        var seq = 0L
+        drain(items) { item ->
+            val key = keyFx(item)
+            if (heap.size < k) {
+                heap.add(Entry(key, seq, item))
+            } else if (comparator.compare(key, heap.peek().key) < 0) {
+                heap.poll()
+                heap.add(Entry(key, seq, item))
+            }
+            seq += 1
+        }
+        return heap.sortedWith(order).map { it.item }
+    }
+}
+
+/**
+ * Binary encoding of items spilled to disk
+ */
+interface UCCodec<T> {
+    fun write(item: T, out: DataOutput)
+
+    fun read(input: DataInput): T
+}
+
+/**
+ * Common codecs
+ */
+object UCCodecs {
+    /**
+     * @return codec of strings of any length, encoded as UTF-8
+     */
+    @JvmStatic
+    fun strings(): UCCodec<String> = StringCodec
+}
+
+private object StringCodec : UCCodec<String> {
+    override fun write(item: String, out: DataOutput) {
+        val bytes = item.toByteArray(Charsets.UTF_8)
+        out.writeInt(bytes.size)
+        out.write(bytes)
+    }
+
+    override fun read(input: DataInput): String {
+        val bytes = ByteArray(input.readInt())
+        input.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+}
+
+/**
+ * Sorts items in key order (ties in arrival order), holding at most maxItems items in memory.
+ * Beyond that, sorted runs are spilled to temporary files, then merged while items are fed to the fields.
+ * At most fanIn runs are merged at once, larger numbers of runs being merged in several passes
+ * @param directory - directory of temporary files, null for the default temporary directory
+ */
+internal data class ExternalSorted<T, K>(val keyFx: (T) -> K,
+                                         val comparator: Comparator<in K>,
+                                         val codec: UCCodec<T>,
+                                         val maxItems: Int,
+                                         val directory: Path? = null,
+                                         val fanIn: Int = 64,
+                                         val bufferSize: Int = 64 * 1024) : (Iterable<T>) -> Iterable<T> {
+    init {
+        require(maxItems > 0, { "maxItems must be positive" })
+        require(fanIn > 1, { "fanIn must be greater than 1" })
+    }
+
+    /**
+     * Sorted run spilled to a file
+     */
+    private class Run(val path: Path, val size: Long)
+
+    /**
+     * Head item of a run being merged
+     */
+    private class Head<out K, out T>(val key: K, val item: T, val run: Int)
+
+    override fun invoke(items: Iterable<T>): Iterable<T> = object : Iterable<T> {
+        override fun iterator(): Iterator<T> = sort(items)
+    }
+
+    private fun sort(items: Iterable<T>): Iterator<T> {
+        val runs = mutableListOf<Run>()
+        var buffer = ArrayList<T>()
+        try {
+            drain(items) { item ->
+                buffer.add(item)
+                if (buffer.size >= maxItems) {
+                    runs.add(spill(sortRun(buffer).iterator(), buffer.size.toLong()))
+                    buffer = ArrayList()
+                }
+            }
+            if (runs.isEmpty()) {
+                return sortRun(buffer).iterator()
+            }
+            if (buffer.isNotEmpty()) {
+                runs.add(spill(sortRun(buffer).iterator(), buffer.size.toLong()))
+            }
+            // consecutive runs are merged together, so that ties stay in arrival order
+            var pass: List<Run> = runs.toList()
+            while (pass.size > fanIn) {
+                val merged = mutableListOf<Run>()
+                for (from in 0 until pass.size step fanIn) {
+                    val group = pass.subList(from, Math.min(from + fanIn, pass.size))
+                    Merge(group).use { merged.add(spill(it, group.fold(0L, { n, r -> n + r.size }))) }
+                    runs.removeAll(group)
+                    runs.add(merged.last())
+                }
+                pass = merged
+            }
+            return Merge(pass)
+        } catch (e: Exception) {
+            runs.forEach { Files.deleteIfExists(it.path) }
+            throw e
+        }
+    }
+
+    private fun sortRun(buffer: List<T>): List<T> {
+        return buffer.map { Head(keyFx(it), it, 0) }
+                .sortedWith(Comparator { a, b -> comparator.compare(a.key, b.key) })
+                .map { it.item }
+    }
+
+    private fun spill(sorted: Iterator<T>, size: Long): Run {
+        val path = if (directory != null) Files.createTempFile(directory, "unilines-sort", ".run")
+        else Files.createTempFile("unilines-sort", ".run")
+        try {
+            DataOutputStream(BufferedOutputStream(Files.newOutputStream(path), bufferSize)).use { out ->
+                for (item in sorted) {
+                    codec.write(item, out)
+                }
+            }
+        } catch (e: Exception) {
+            Files.deleteIfExists(path)
+            throw e
+        }
+        return Run(path, size)
+    }
+
+    /**
+     * k-way merge of sorted runs, deleting run files once consumed or closed
+     */
+    private inner class Merge(val runs: List<Run>) : Iterator<T>, Closeable {
+        private val inputs = ArrayList<DataInputStream>(runs.size)
+        private val remaining = LongArray(runs.size, { runs[it].size })
+        private val heap = PriorityQueue<Head<K, T>>(Math.max(1, runs.size), Comparator { a, b ->
+            val byKey = comparator.compare(a.key, b.key)
+            if (byKey != 0) byKey else Integer.compare(a.run, b.run)
+        })
+        private var closed = false
+
+        init {
+            // streams already opened are closed if a run cannot be opened or read
+            try {
+                runs.forEach { inputs.add(DataInputStream(BufferedInputStream(Files.newInputStream(it.path), bufferSize))) }
+                runs.indices.forEach { advance(it) }
+            } catch (e: Exception) {
+                close()
+                throw e
+            }
+        }
+
+        private fun advance(run: Int) {
+            if (remaining[run] == 0L) {
+                return
+            }
+            remaining[run] = remaining[run] - 1
+            val item = codec.read(inputs[run])
+            heap.add(Head(keyFx(item), item, run))
+        }
+
+        override fun hasNext(): Boolean {
+            if (heap.isEmpty()) {
+                close()
+                return false
+            }
+            return true
+        }
+
+        override fun next(): T {
+            val head = heap.poll() ?: throw NoSuchElementException()
+            advance(head.run)
+            return head.item
+        }
+
+        override fun close() {
+            if (closed) {
+                return
+            }
+            closed = true
+            inputs.forEach { it.close() }
+            runs.forEach { Files.deleteIfExists(it.path) }
+        }
+    }
+}
+
+/**
+ * Passes only the first item of every key
+ */
+internal data class Distinct<T>(val keyFx: (T) -> Any?, val seenFx: () -> Seen) : (Iterable<T>) -> Iterable<T> {
+
+    /**
+     * Set of keys already seen
+     */
+    internal interface Seen {
+        /**
+         * @return true if the key was not seen before
+         */
+        fun add(key: Any?): Boolean
+    }
+
+    override fun invoke(items: Iterable<T>): Iterable<T> = FirstOfKeys(items, {
+        val seen = seenFx()
+        object : FirstOfKeys.Filter<T> {
+            override fun isFirst(item: T): Boolean = seen.add(keyFx(item))
+        }
+    })
+}
+
+/**
+ * Same as Distinct, for long keys: keys are extracted and held unboxed
+ */
+internal data class DistinctLong<T>(val keyFx: ToLongFunction<in T>) : (Iterable<T>) -> Iterable<T> {
+    override fun invoke(items: Iterable<T>): Iterable<T> = FirstOfKeys(items, {
+        val seen = LongHashSeen()
+        object : FirstOfKeys.Filter<T> {
+            override fun isFirst(item: T): Boolean = seen.add(keyFx.applyAsLong(item))
+        }
+    })
+}
+
+/**
+ * Items of the source passing a filter, a new one being created by every iteration
+ */
+private class FirstOfKeys<T>(private val items: Iterable<T>, private val filterFx: () -> Filter<T>)
+    : Iterable<T>, AutoCloseable {
+
+    interface Filter<in T> {
+        /**
+         * @return true if the item is the first one of its key
+         */
+        fun isFirst(item: T): Boolean
+    }
+
+    override fun iterator(): Iterator<T> {
+        val filter = filterFx()
+        val source = items.iterator()
+        return object : Iterator<T>, AutoCloseable {
+            var next: T? = null
+            var ready = false
+
+            override fun hasNext(): Boolean {
+                while (!ready && source.hasNext()) {
+                    val item = source.next()
+                    if (filter.isFirst(item)) {
+                        next = item
+                        ready = true
+                    }
+                }
+                return ready
+            }
+
+            override fun next(): T {
+                if (!hasNext()) {
+                    throw NoSuchElementException()
+                }
+                ready = false
+                @Suppress("UNCHECKED_CAST")
+                return next as T
+            }
+
+            override fun close() = closeSource(items, source)
+        }
+    }
+
+    override fun close() {
+        (items as? AutoCloseable)?.close()
+    }
+}
+
+/**
+ * Exact set of keys, with open addressing (linear probing) over arrays of keys and of their hashes
+ */
+internal class OpenHashSeen : Distinct.Seen {
+    private var keys = arrayOfNulls<Any>(16)
+    private var hashes = IntArray(16)
+    private var size = 0
+    private var hasNull = false
+
+    override fun add(key: Any?): Boolean {
+        if (key == null) {
+            val added = !hasNull
+            hasNull = true
+            return added
+        }
+        val hash = Hashing.mix(key.hashCode().toLong()).toInt()
+        val mask = keys.size - 1
+        var i = hash and mask
+        while (true) {
+            val k = keys[i] ?: break
+            if (hashes[i] == hash && k == key) {
+                return false
+            }
+            i = (i + 1) and mask
+        }
+        keys[i] = key
+        hashes[i] = hash
+        size += 1
+        if (size * 2 > keys.size) {
+            grow()
+        }
+        return true
+    }
+
+    private fun grow() {
+        val oldKeys = keys
+        val oldHashes = hashes
+        keys = arrayOfNulls(oldKeys.size * 2)
+        hashes = IntArray(oldKeys.size * 2)
+        val mask = keys.size - 1
+        for (j in oldKeys.indices) {
+            val k = oldKeys[j] ?: continue
+            var i = oldHashes[j] and mask
+            while (keys[i] != null) {
+                i = (i + 1) and mask
+            }
+            keys[i] = k
+            hashes[i] = oldHashes[j]
+        }
+    }
+}
+
+/**
+ * Exact set of long keys, with open addressing over a primitive array (0 being tracked apart)
+ */
+internal class LongHashSeen {
+    private var keys = LongArray(16)
+    private var size = 0
+    private var hasZero = false
+
+    /**
+     * @return true if the key was not seen before
+     */
+    fun add(key: Long): Boolean {
+        if (key == 0L) {
+            val added = !hasZero
+            hasZero = true
+            return added
+        }
+        val mask = keys.size - 1
+        var i = Hashing.mix(key).toInt() and mask
+        while (keys[i] != 0L) {
+            if (keys[i] == key) {
+                return false
+            }
+            i = (i + 1) and mask
+        }
+        keys[i] = key
+        size += 1
+        if (size * 2 > keys.size) {
+            grow()
+        }
+        return true
+    }
+
+    private fun grow() {
+        val old = keys
+        keys = LongArray(old.size * 2)
+        val mask = keys.size - 1
+        for (k in old) {
+            if (k == 0L) continue
+            var i = Hashing.mix(k).toInt() and mask
+            while (keys[i] != 0L) {
+                i = (i + 1) and mask
+            }
+            keys[i] = k
+        }
+    }
+}
+
+/**
+ * Approximate set of keys: a key is reported as seen if the Bloom filter probably contains it,
+ * so a few unique items may be dropped, at the given false positive rate
+ */
+internal data class BloomSeenFx(val expectedItems: Long, val falsePositiveRate: Double) : () -> Distinct.Seen {
+    override fun invoke(): Distinct.Seen {
+        val filter = UCBloomFilter(expectedItems, falsePositiveRate)
+        return object : Distinct.Seen {
+            override fun add(key: Any?): Boolean = filter.add(key)
+        }
+    }
+}
+
+/**
+ * Merge-join of two sources sorted by the same key: every left item is paired with each right item
+ * of the same key, or with null if there is none and unmatched items are kept.
+ * Both sources are streamed once, only the right items of the current key being held in memory
+ */
+internal data class MergeJoined<in T, L, R, K>(val leftFx: (T?) -> Iterable<L>,
+                                               val rightFx: (T?) -> Iterable<R>,
+                                               val leftKeyFx: (L) -> K,
+                                               val rightKeyFx: (R) -> K,
+                                               val comparator: Comparator<in K>,
+                                               val keepUnmatched: Boolean) : (T?) -> Iterable<Pair<L, R?>> {
+
+    override fun invoke(sourceObj: T?): Iterable<Pair<L, R?>> = object : Iterable<Pair<L, R?>>, AutoCloseable {
+        val lefts = leftFx(sourceObj)
+        val rights = rightFx(sourceObj)
+
+        override fun iterator(): Iterator<Pair<L, R?>> = Merge(lefts, rights)
+
+        override fun close() {
+            (lefts as? AutoCloseable)?.close()
+            (rights as? AutoCloseable)?.close()
+        }
+    }
+
+    private inner class Merge(val lefts: Iterable<L>, val rights: Iterable<R>) : Iterator<Pair<L, R?>>, AutoCloseable {
+        val left = lefts.iterator()
+        val right = rights.iterator()
+        val pending = ArrayDeque<Pair<L, R?>>()
+
+        // right items of the current key, and the first right item beyond them
+        val run = ArrayList<R>()
+        var runKey: K? = null
+        var hasRun = false
+        var lookahead: R? = null
+        var lookaheadKey: K? = null
+        var hasLookahead = false
+        var hasRightKey = false
+        var lastLeftKey: K? = null
+        var hasLeft = false
+
+        override fun hasNext(): Boolean {
+            while (pending.isEmpty() && left.hasNext()) {
+                val item = left.next()
+                val key = leftKeyFx(item)
+                if (hasLeft && comparator.compare(lastLeftKey, key) > 0) {
+                    throw IllegalStateException("Left source is not sorted: $key after $lastLeftKey")
+                }
+                lastLeftKey = key
+                hasLeft = true
+                if (!hasRun || comparator.compare(runKey, key) != 0) {
+                    advanceTo(key)
+                }
+                if (hasRun && comparator.compare(runKey, key) == 0) {
+                    run.forEach { r -> pending.add(Pair(item, r)) }
+                } else if (keepUnmatched) {
+                    pending.add(Pair(item, null))
+                }
+            }
+            return !pending.isEmpty()
+        }
+
+        override fun next(): Pair<L, R?> {
+            if (!hasNext()) {
+                throw NoSuchElementException()
+            }
+            return pending.poll()
+        }
+
+        /**
+         * Skips right items of keys lower than the given one, then collects the run of the key, if any
+         */
+        private fun advanceTo(key: K) {
+            run.clear()
+            hasRun = false
+            while (peek() && comparator.compare(lookaheadKey, key) < 0) {
+                hasLookahead = false
+            }
+            if (!peek() || comparator.compare(lookaheadKey, key) > 0) {
+                return
+            }
+            runKey = lookaheadKey
+            hasRun = true
+            while (peek() && comparator.compare(lookaheadKey, key) == 0) {
+                @Suppress("UNCHECKED_CAST")
+                run.add(lookahead as R)
+                hasLookahead = false
+            }
+        }
+
+        private fun peek(): Boolean {
+            if (!hasLookahead && right.hasNext()) {
+                val item = right.next()
+                val key = rightKeyFx(item)
+                if (hasRightKey && comparator.compare(lookaheadKey, key) > 0) {
+                    throw IllegalStateException("Right source is not sorted: $key after $lookaheadKey")
+                }
+                lookahead = item
+                lookaheadKey = key
+                hasRightKey = true
+                hasLookahead = true
+            }
+            return hasLookahead
+        }
+
+        override fun close() {
+            closeSource(lefts, left)
+            closeSource(rights, right)
+        }
+    }
+}
+
+/**
+ * Hash-join: the right source is loaded into a hash table by key, then the left source is streamed.
+ * Neither source needs to be sorted, but all right items are held in memory
+ */
+internal data class HashJoined<in T, L, R, K>(val leftFx: (T?) -> Iterable<L>,
+                                              val rightFx: (T?) -> Iterable<R>,
+                                              val leftKeyFx: (L) -> K,
+                                              val rightKeyFx: (R) -> K,
+                                              val keepUnmatched: Boolean) : (T?) -> Iterable<Pair<L, R?>> {
+
+    override fun invoke(sourceObj: T?): Iterable<Pair<L, R?>> = object : Iterable<Pair<L, R?>>, AutoCloseable {
+        val lefts = leftFx(sourceObj)
+
+        override fun iterator(): Iterator<Pair<L, R?>> {
+            val table = load(rightFx(sourceObj))
+            return lefts.asSequence()
+                    .flatMap { l ->
+                        val matches = table[leftKeyFx(l)]
+                        when {
+                            matches != null -> matches.asSequence().map { r -> Pair<L, R?>(l, r) }
+                            keepUnmatched -> sequenceOf(Pair<L, R?>(l, null))
+                            else -> emptySequence()
+                        }
+                    }
+                    .iterator()
+        }
+
+        override fun close() {
+            (lefts as? AutoCloseable)?.close()
+        }
+    }
+
+    private fun load(rights: Iterable<R>): Map<K, List<R>> {
+        val table = HashMap<K, MutableList<R>>()
+        drain(rights) { r -> table.getOrPut(rightKeyFx(r), { ArrayList(1) }).add(r) }
+        return table
+    }
+}
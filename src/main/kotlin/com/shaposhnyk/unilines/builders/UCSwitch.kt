@@ -0,0 +1,20 @@
+package com.shaposhnyk.unilines.builders
+
+/**
+ * Switch of an optional feature of the hot path (cancellation, short-circuit, fingerprints, flight recorder):
+ * off until the feature is first used, so pipelines do not look up its thread-local state until then.
+ * Volatile, so a switch turned by one thread is seen by pipelines running on the others
+ */
+internal class UCSwitch {
+    @Volatile
+    var isOn = false
+        private set
+
+    fun on() {
+        isOn = true
+    }
+
+    fun off() {
+        isOn = false
+    }
+}
@@ -0,0 +1,144 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UBiPipeline
+import com.shaposhnyk.unilines.UField
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.function.IntFunction
+import java.util.function.Supplier
+
+/**
+ * JIT warmup of pipelines: sample source objects are consumed into throwaway contexts,
+ * so the hot paths are compiled before real traffic. Pipelines are warmed up concurrently,
+ * each one for a number of iterations, or until JIT compilation becomes quiet (see untilStable()).
+ * JIT compilation time is only known for the whole JVM, in milliseconds: compilations of other threads
+ * delay stability, and a round with compilations shorter than a millisecond may look quiet
+ * @param iterations - number of consume() calls per pipeline, or the minimum number if untilStable
+ * @param roundSize - number of consume() calls between two checks of JIT compilation time
+ * @param stableRounds - number of consecutive rounds without compilation to consider a pipeline compiled, 0 to disable
+ * @param maxMillis - maximum warmup time per pipeline
+ */
+data class UCWarmup @JvmOverloads constructor(
+        private val tasks: List<Task<*, *>> = listOf(),
+        private val iterations: Int = 10000,
+        private val roundSize: Int = 1000,
+        private val stableRounds: Int = 0,
+        private val maxMillis: Long = 60000
+) {
+    init {
+        require(iterations >= 0, { "iterations must not be negative" })
+        require(roundSize > 0, { "roundSize must be positive" })
+        require(stableRounds >= 0, { "stableRounds must not be negative" })
+        require(maxMillis > 0, { "maxMillis must be positive" })
+    }
+
+    /**
+     * Pipeline to warm up
+     * @param sampleFx - sample source object of an iteration
+     * @param contextFx - creates a throwaway working context
+     */
+    data class Task<T, C>(val pipeline: UBiPipeline<T, C>,
+                          private val sampleFx: (Int) -> T?,
+                          private val contextFx: () -> C) {
+        internal fun consume(i: Int) = pipeline.consume(sampleFx(i), contextFx())
+    }
+
+    /**
+     * Warmup of a pipeline
+     * @param failures - failed iterations (samples are not expected to be valid for every field)
+     * @param stable - true if JIT compilation became quiet before the end
+     */
+    data class Result(val field: UField,
+                      val iterations: Int,
+                      val failures: Int,
+                      val millis: Long,
+                      val stable: Boolean)
+
+    /**
+     * Pipeline warmed up with the given samples, used in turn
+     */
+    fun <T, C> with(pipeline: UBiPipeline<T, C>, samples: List<T>, contextFx: () -> C): UCWarmup {
+        if (samples.isEmpty()) {
+            throw IllegalArgumentException("No samples for ${pipeline.externalName()}")
+        }
+        return with(pipeline, { i -> samples[i % samples.size] }, contextFx)
+    }
+
+    fun <T, C> withJ(pipeline: UBiPipeline<T, C>, samples: List<T>, contextFx: Supplier<C>): UCWarmup {
+        return with(pipeline, samples, contextFx::get)
+    }
+
+    /**
+     * Pipeline warmed up with samples produced by a generator of the iteration number
+     */
+    fun <T, C> with(pipeline: UBiPipeline<T, C>, sampleFx: (Int) -> T?, contextFx: () -> C): UCWarmup {
+        return copy(tasks = tasks + Task(pipeline, sampleFx, contextFx))
+    }
+
+    fun <T, C> withJ(pipeline: UBiPipeline<T, C>, sampleFx: IntFunction<T>, contextFx: Supplier<C>): UCWarmup {
+        return with(pipeline, sampleFx::apply, contextFx::get)
+    }
+
+    fun withIterations(iterations: Int) = copy(iterations = iterations)
+
+    fun withMaxMillis(maxMillis: Long) = copy(maxMillis = maxMillis)
+
+    /**
+     * Warmup of a pipeline continues beyond iterations, until no JIT compilation occurs during stableRounds rounds
+     * of roundSize iterations. Ignored if the JVM does not monitor compilation time.
+     * Compilation time being JVM-wide, pipelines are then warmed up one after another, and other activity
+     * of the JVM compiling code delays stability
+     */
+    @JvmOverloads
+    fun untilStable(stableRounds: Int = 3, roundSize: Int = 1000) = copy(stableRounds = stableRounds, roundSize = roundSize)
+
+    /**
+     * Warms up pipelines concurrently, or one after another on the executor if untilStable
+     * @return results in the order pipelines were added
+     */
+    fun run(executor: Executor): List<Result> {
+        if (stableRounds > 0) {
+            return CompletableFuture.supplyAsync(Supplier { run() }, executor).join()
+        }
+        val futures = tasks.map { task -> CompletableFuture.supplyAsync(Supplier { warmup(task) }, executor) }
+        return futures.map { it.join() }
+    }
+
+    /**
+     * Warms up pipelines one after another, in the current thread
+     */
+    fun run(): List<Result> = tasks.map { warmup(it) }
+
+    private fun warmup(task: Task<*, *>): Result {
+        val compilation = ManagementFactory.getCompilationMXBean()
+        val monitored = stableRounds > 0 && compilation != null && compilation.isCompilationTimeMonitoringSupported
+        val started = System.nanoTime()
+        val deadline = started + maxMillis * 1000000
+        var done = 0
+        var failures = 0
+        var quietRounds = 0
+        var compiled = if (monitored) compilation.totalCompilationTime else 0L
+        while (System.nanoTime() < deadline) {
+            val round = if (done < iterations) Math.min(roundSize, iterations - done) else roundSize
+            for (n in 0 until round) {
+                try {
+                    task.consume(done)
+                } catch (e: RuntimeException) {
+                    failures += 1
+                }
+                done += 1
+            }
+            if (monitored) {
+                val nowCompiled = compilation.totalCompilationTime
+                quietRounds = if (nowCompiled == compiled) quietRounds + 1 else 0
+                compiled = nowCompiled
+            }
+            if (done >= iterations && (!monitored || quietRounds >= stableRounds)) {
+                break
+            }
+        }
+        val millis = (System.nanoTime() - started) / 1000000
+        return Result(task.pipeline, done, failures, millis, monitored && quietRounds >= stableRounds)
+    }
+}
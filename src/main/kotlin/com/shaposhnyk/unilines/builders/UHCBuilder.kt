@@ -2,6 +2,11 @@ package com.shaposhnyk.unilines.builders
 
 import com.shaposhnyk.unilines.UBiPipeline
 import com.shaposhnyk.unilines.UField
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+import java.util.function.BiConsumer
+import java.util.function.Function
+import java.util.function.Predicate
 
 /**
  * Hierarchical downstream builder.
@@ -13,7 +18,11 @@ data class UHCBuilder<in T_IN, C_IN, T_OUT, C_OUT>(
         val f: UField,
         val sFx: (T_IN?) -> T_OUT?,
         val ctxFx: (C_IN) -> C_OUT,
-        val fields: MutableList<UBiPipeline<T_OUT, C_OUT>> = mutableListOf()
+        val fields: MutableList<UBiPipeline<T_OUT, C_OUT>> = mutableListOf(),
+        val parallelSafe: MutableList<Boolean> = mutableListOf(),
+        val parallelism: UCObjects.Parallelism<C_OUT>? = null,
+        val budgetMillis: Long = -1,
+        val guards: List<(T_OUT?) -> Boolean> = listOf()
 ) : ComposingBuilder<T_IN, C_IN, T_OUT, C_OUT> {
 
     override fun fields(): List<UBiPipeline<*, *>> = fields.toList()
@@ -25,7 +34,7 @@ data class UHCBuilder<in T_IN, C_IN, T_OUT, C_OUT>(
      * @param typeRef - used only for type inference
      */
     fun <TX> ofSourceType(typeRef: Class<TX>): UHCBuilder<TX, C_IN, TX, C_OUT> {
-        return UHCBuilder(f, { it }, ctxFx)
+        return withSourceFx(Identity.of())
     }
 
     /**
@@ -33,7 +42,7 @@ data class UHCBuilder<in T_IN, C_IN, T_OUT, C_OUT>(
      * @param typeSup - used only for type inference. Never called
      */
     fun <TX> ofSourceType(typeSup: () -> TX): UHCBuilder<TX, C_IN, TX, C_OUT> {
-        return UHCBuilder(f, { it }, ctxFx)
+        return withSourceFx(Identity.of())
     }
 
     /**
@@ -41,7 +50,7 @@ data class UHCBuilder<in T_IN, C_IN, T_OUT, C_OUT>(
      * @param obj - used only for type inference
      */
     fun <TX> ofSourceType(obj: TX): UHCBuilder<TX, C_IN, TX, C_OUT> {
-        return UHCBuilder(f, { it }, ctxFx)
+        return withSourceFx(Identity.of())
     }
 
     /**
@@ -49,7 +58,7 @@ data class UHCBuilder<in T_IN, C_IN, T_OUT, C_OUT>(
      * @param typeRef - used only for type inference
      */
     fun <CX> ofContextType(typeRef: Class<CX>): UHCBuilder<T_IN, CX, T_OUT, CX> {
-        return UHCBuilder(f, sFx, { it })
+        return withContextFx(Identity.of())
     }
 
     /**
@@ -57,7 +66,7 @@ data class UHCBuilder<in T_IN, C_IN, T_OUT, C_OUT>(
      * @param typeSup - used only for type inference. Never called
      */
     fun <CX> ofContextType(typeSup: () -> CX): UHCBuilder<T_IN, CX, T_OUT, CX> {
-        return UHCBuilder(f, sFx, { it })
+        return withContextFx(Identity.of())
     }
 
     /**
@@ -65,50 +74,171 @@ data class UHCBuilder<in T_IN, C_IN, T_OUT, C_OUT>(
      * @param obj - used only for type inference
      */
     fun <CX> ofContextType(obj: CX): UHCBuilder<T_IN, CX, T_OUT, CX> {
-        return UHCBuilder(f, sFx, { it })
+        return withContextFx(Identity.of())
     }
 
-    // Initializers: this will throw out existing converters
+    // Initializers: this will throw out existing converters.
+    // Parallelism, deadline and guards are kept, except guards when the source object is changed (see withSourceFx())
 
     fun <TX0, TX1> ofSourceMap(newSFx: (TX0?) -> TX1?): UHCBuilder<TX0, C_IN, TX1, C_OUT> {
-        return UHCBuilder(f, newSFx, ctxFx)
+        return withSourceFx(newSFx)
     }
 
     fun <TX0, TX1> ofSourceMapF(newSFx: (UField, TX0?) -> TX1?): UHCBuilder<TX0, C_IN, TX1, C_OUT> {
-        return ofSourceMap { newSFx(f, it) }
+        return ofSourceMap(FieldBound(f, newSFx))
     }
 
     fun <CX0, CX1> ofContextMap(newCtxF: (CX0) -> CX1): UHCBuilder<T_IN, CX0, T_OUT, CX1> {
-        return UHCBuilder(f, sFx, newCtxF)
+        return withContextFx(newCtxF)
     }
 
     fun <CX0, CX1> ofContextMapF(newCtxF: (UField, CX0) -> CX1): UHCBuilder<T_IN, CX0, T_OUT, CX1> {
-        return ofContextMap { newCtxF(f, it) }
+        return ofContextMap(FieldBound(f, newCtxF))
     }
 
     // Mappers: do input or context transformation
 
     fun <X> mapS(afterSFx: (T_OUT?) -> X?): UHCBuilder<T_IN, C_IN, X, C_OUT> {
-        return UHCBuilder<T_IN, C_IN, X, C_OUT>(f, { afterSFx(sFx(it)) }, ctxFx)
+        return withSourceFx<T_IN, X>(Composed(sFx, afterSFx))
     }
 
     fun <X> mapSF(afterSFx: (UField, T_OUT?) -> X?): UHCBuilder<T_IN, C_IN, X, C_OUT> {
-        return mapS { afterSFx(f, it) }
+        return mapS(FieldBound(f, afterSFx))
     }
 
     fun <X> mapC(afterCtxFx: (C_OUT) -> X): UHCBuilder<T_IN, C_IN, T_OUT, X> {
-        return UHCBuilder<T_IN, C_IN, T_OUT, X>(f, sFx, { afterCtxFx(ctxFx(it)) })
+        return withContextFx<C_IN, X>(Composed(ctxFx, afterCtxFx))
     }
 
     fun <X> mapCF(afterCtxFx: (UField, C_OUT) -> X): UHCBuilder<T_IN, C_IN, T_OUT, X> {
-        return mapC { afterCtxFx(f, it) }
+        return mapC(FieldBound(f, afterCtxFx))
     }
 
     /**
-     * Transform input to an iterable. Every item will be feed to downstream downstream
+     * Transform input to an iterable. Every item will be feed to downstream downstream.
+     * Pending guards are checked on the object, a rejected object having no items. The deadline is kept
+     * @throws IllegalStateException if parallelism is set, flatMaps feeding items sequentially
      */
     fun <X> flatMap(afterSFx: (T_OUT?) -> Iterable<X>): UCObjects.UCHFlatBuilder<T_IN, C_IN, X, C_OUT> {
-        return UCObjects.UCHFlatBuilder(f, { afterSFx(sFx(it)) }, ctxFx)
+        check(parallelism == null, { "Parallelism is not supported by flatMaps" })
+        val guard = guard()
+        val items = if (guard != null) GuardedItems(guard, afterSFx) else afterSFx
+        return UCObjects.UCHFlatBuilder(f, Composed(sFx, items), ctxFx, budgetMillis = budgetMillis)
+    }
+
+    /**
+     * @return builder of another source object, with the working context, parallelism and deadline of this one
+     * @throws IllegalStateException if guards are pending, as they test the previous source object
+     */
+    private fun <TX0, TX1> withSourceFx(newSFx: (TX0?) -> TX1?): UHCBuilder<TX0, C_IN, TX1, C_OUT> {
+        check(guards.isEmpty(), { "Guards test the previous source object: call guard() after mapping it" })
+        return UHCBuilder(f, newSFx, ctxFx, parallelism = parallelism, budgetMillis = budgetMillis)
+    }
+
+    /**
+     * @return builder of another working context, with the source object, guards, parallelism and deadline of this one
+     * @throws IllegalStateException if parallel fields write to buffers, as they are made from the previous working context
+     */
+    @Suppress("UNCHECKED_CAST")
+    private fun <CX0, CX1> withContextFx(newCtxFx: (CX0) -> CX1): UHCBuilder<T_IN, CX0, T_OUT, CX1> {
+        check(parallelism?.bufferFx == null, { "Buffers are made from the previous working context: call parallel() after mapping it" })
+        return UHCBuilder(f, sFx, newCtxFx, parallelism = parallelism as UCObjects.Parallelism<CX1>?,
+                budgetMillis = budgetMillis, guards = guards)
+    }
+
+    // Parallelism: sibling fields executed concurrently. The calling thread runs one of them, and runs itself
+    // those still queued once it is done, so parallel objects can be nested on a bounded executor
+
+    /**
+     * All the fields will be executed concurrently on the executor, writing directly to the working context.
+     * The working context must be thread-safe, and the order of writes is not deterministic
+     */
+    fun parallel(executor: Executor): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        return withParallelism(UCObjects.Parallelism(executor, true))
+    }
+
+    /**
+     * All the fields will be executed concurrently on the executor, each one writing to its own buffer.
+     * Buffers are merged into the working context in declaration order, so the output is deterministic
+     * @param bufferFx - creates an empty buffer from the working context
+     * @param mergeFx - merges a buffer (first argument) into the working context (second argument)
+     */
+    fun parallel(executor: Executor,
+                 bufferFx: (C_OUT) -> C_OUT,
+                 mergeFx: (C_OUT, C_OUT) -> Unit): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        return withParallelism(UCObjects.Parallelism(executor, true, bufferFx, mergeFx))
+    }
+
+    fun parallelJ(executor: Executor,
+                  bufferFx: Function<C_OUT, C_OUT>,
+                  mergeFx: BiConsumer<C_OUT, C_OUT>): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        return parallel(executor, { c -> bufferFx.apply(c) }, { b, c -> mergeFx.accept(b, c) })
+    }
+
+    /**
+     * Only fields added with parallelField() will be executed concurrently on the executor,
+     * others are executed by the calling thread. Writes are done as in parallel(executor)
+     */
+    fun parallelOn(executor: Executor): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        return withParallelism(UCObjects.Parallelism(executor, false))
+    }
+
+    /**
+     * Only fields added with parallelField() will be executed concurrently on the executor.
+     * Writes are done as in parallel(executor, bufferFx, mergeFx)
+     */
+    fun parallelOn(executor: Executor,
+                   bufferFx: (C_OUT) -> C_OUT,
+                   mergeFx: (C_OUT, C_OUT) -> Unit): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        return withParallelism(UCObjects.Parallelism(executor, false, bufferFx, mergeFx))
+    }
+
+    fun parallelOnJ(executor: Executor,
+                    bufferFx: Function<C_OUT, C_OUT>,
+                    mergeFx: BiConsumer<C_OUT, C_OUT>): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        return parallelOn(executor, { c -> bufferFx.apply(c) }, { b, c -> mergeFx.accept(b, c) })
+    }
+
+    private fun withParallelism(newParallelism: UCObjects.Parallelism<C_OUT>): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        return copy(parallelism = newParallelism, fields = fields.toMutableList(), parallelSafe = parallelSafe.toMutableList())
+    }
+
+    // Deadlines
+
+    /**
+     * The built pipeline will be executed within a time budget, or within what is left of the current deadline
+     * if it is shorter. Fields with a deadline (see ExtractingBuilder.withDeadline()) see the remaining time,
+     * including parallel fields (see parallelField()), which get the deadline of the calling thread.
+     * The budget itself abandons nothing: fields without a deadline run to completion even once it is passed
+     */
+    fun withDeadline(budgetMillis: Long): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        return copy(budgetMillis = budgetMillis, fields = fields.toMutableList(), parallelSafe = parallelSafe.toMutableList())
+    }
+
+    // Guards: object-level pre-filters
+
+    /**
+     * The built pipeline will feed its fields only if the (mapped) source object matches the predicate.
+     * Guards are checked in declaration order before the working context is mapped (see ofContextMap()),
+     * so a rejected object costs only its guards: no field, context mapping or nested flatMap is run
+     */
+    fun guard(predicate: (T_OUT?) -> Boolean): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        return copy(guards = guards + predicate, fields = fields.toMutableList(), parallelSafe = parallelSafe.toMutableList())
+    }
+
+    fun guardJ(predicate: Predicate<T_OUT?>): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        return guard(predicate::test)
+    }
+
+    /**
+     * Guard on the value extracted by the extractor of a field (typically a cheap attribute), which is not written
+     */
+    fun <R> guard(field: ExtractingBuilder<T_OUT, *, R>, predicate: (R?) -> Boolean): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        return guard(Composed(field.extractor(), predicate))
+    }
+
+    fun <R> guardJ(field: ExtractingBuilder<T_OUT, *, R>, predicate: Predicate<R?>): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        return guard(field, predicate::test)
     }
 
     /**
@@ -117,6 +247,17 @@ data class UHCBuilder<in T_IN, C_IN, T_OUT, C_OUT>(
      */
     override fun field(converter: UBiPipeline<T_OUT, C_OUT>): ComposingBuilder<T_IN, C_IN, T_OUT, C_OUT> {
         fields.add(converter)
+        parallelSafe.add(false)
+        return this
+    }
+
+    /**
+     * Add a parallel-safe field, which can be executed concurrently with other parallel-safe fields.
+     * If no executor is given with parallelOn(), common fork-join pool is used
+     */
+    fun parallelField(converter: UBiPipeline<T_OUT, C_OUT>): UHCBuilder<T_IN, C_IN, T_OUT, C_OUT> {
+        fields.add(converter)
+        parallelSafe.add(true)
         return this
     }
 
@@ -124,12 +265,27 @@ data class UHCBuilder<in T_IN, C_IN, T_OUT, C_OUT>(
      * Builds new downstream from the builder
      */
     override fun build(): UBiPipeline<T_IN, C_IN> {
-        return UCObjects.ChainingBiPipeline(f, fields.toList(), { t, c ->
-            val t1 = sFx(t)
-            val c1 = ctxFx(c)
-            fields.forEach { f ->
-                f.consume(t1, c1)
-            }
-        })
+        val downstreams = fields.toList()
+        val consumer = fieldsConsumer(downstreams)
+        if (budgetMillis >= 0) {
+            return UCObjects.ChainingBiPipeline(f, downstreams, DeadlineScoped(budgetMillis, consumer))
+        }
+        return UCObjects.ChainingBiPipeline(f, downstreams, consumer)
+    }
+
+    private fun guard(): ((T_OUT?) -> Boolean)? = when (guards.size) {
+        0 -> null
+        1 -> guards[0]
+        else -> AllOf(guards)
+    }
+
+    private fun fieldsConsumer(downstreams: List<UBiPipeline<T_OUT, C_OUT>>): (T_IN?, C_IN) -> Unit {
+        val guard = guard()
+        if (parallelism == null && !parallelSafe.contains(true)) {
+            return UCObjects.FieldsConsumer(sFx, ctxFx, downstreams, guard)
+        }
+        val safe = if (parallelism?.allFields ?: false) downstreams.map { true } else parallelSafe.toList()
+        return UCObjects.ParallelFieldsConsumer(sFx, ctxFx, downstreams, safe,
+                parallelism ?: UCObjects.Parallelism(ForkJoinPool.commonPool(), false), guard)
     }
 }
\ No newline at end of file
@@ -0,0 +1,141 @@
+package com.shaposhnyk.unilines.map;
+
+import com.shaposhnyk.unilines.UBiPipeline;
+import com.shaposhnyk.unilines.UField;
+import com.shaposhnyk.unilines.UTriConsumer;
+import com.shaposhnyk.unilines.builders.UCField;
+import com.shaposhnyk.unilines.builders.UCObjects;
+import com.shaposhnyk.unilines.map.helpers.MyObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+
+/**
+ * Batched lookups within flatMap sub-pipelines
+ */
+public class BatchingTest extends ConverterBase {
+
+    private static final UTriConsumer<UField, Object, Map<String, Object>> UWRITER = (f, s, ctx) -> ctx.put(f.externalName(), s);
+
+    private final List<Set<String>> lookups = new ArrayList<>();
+
+    @Test
+    public void lookupsAreBatchedByWindow() {
+        UBiPipeline<String, Map<String, Object>> converter = usersConverter(2);
+
+        Map<String, Object> ctx = new ConcurrentHashMap<>();
+        converter.consume("brian,harry,hermione,ron,albus", ctx);
+
+        Assert.assertThat(lookups, equalTo(Arrays.asList(
+                set("brian", "harry"), set("hermione", "ron"), set("albus"))));
+        Assert.assertThat(managers(ctx), equalTo(Arrays.asList(
+                "BRIAN", "HARRY", "HERMIONE", "RON", "ALBUS")));
+    }
+
+    @Test
+    public void lookupsAreDeduplicated() {
+        UBiPipeline<String, Map<String, Object>> converter = usersConverter(10);
+
+        Map<String, Object> ctx = new ConcurrentHashMap<>();
+        converter.consume("brian,harry,brian,unknown,harry", ctx);
+
+        Assert.assertThat(lookups, equalTo(Collections.singletonList(set("brian", "harry", "unknown"))));
+        Assert.assertThat(managers(ctx), equalTo(Arrays.asList("BRIAN", "HARRY", "BRIAN", null, "HARRY")));
+    }
+
+    @Test
+    public void lookupIsImmediateOutsideOfFlatMap() {
+        Map<String, Object> ctx = new ConcurrentHashMap<>();
+        managerField(10).consume(new MyObject("brian", 1), ctx);
+
+        Assert.assertThat(lookups, equalTo(Collections.singletonList(set("brian"))));
+        Assert.assertThat(ctx.get("manager"), equalTo("BRIAN"));
+    }
+
+    @Test
+    public void noWindowIsOpenedByFlatMapsWithoutBatchingFields() {
+        UCField.Batching<MyObject, Map<String, Object>, String, String> manager = managerField(10);
+        UBiPipeline<String, Map<String, Object>> converter = UCObjects.Builder.of(UField.Factory.of("items"))
+                .ofSourceType(String.class)
+                .ofContextMapF(PojoToMapTest::newListOfMaps)
+                .flatMap(q -> Arrays.stream(q.split(",")).map(n -> new MyObject(n, 1)).collect(Collectors.toList()))
+                .pipeTo(UCField.Builder.of(UField.Factory.of("user"))
+                        .<MyObject, Collection<Map<String, Object>>>withConsumerJ((o, ctx) ->
+                                manager.consume(o, PojoToMapTest.addSubMap(ctx))));
+
+        Map<String, Object> ctx = new ConcurrentHashMap<>();
+        converter.consume("brian,harry", ctx);
+
+        // the batching field is hidden in a custom field, so it looks items up immediately
+        Assert.assertThat(lookups, equalTo(Arrays.asList(set("brian"), set("harry"))));
+        Assert.assertThat(managers(ctx), equalTo(Arrays.asList("BRIAN", "HARRY")));
+    }
+
+    @Test
+    public void lookupsOfParallelFieldsAreBatched() {
+        UBiPipeline<String, Map<String, Object>> converter = UCObjects.Builder.of(UField.Factory.of("items"))
+                .ofSourceType(String.class)
+                .ofContextMapF(PojoToMapTest::newListOfMaps)
+                .flatMap(q -> Arrays.stream(q.split(",")).map(n -> new MyObject(n, 1)).collect(Collectors.toList()))
+                .pipeTo(
+                        UCObjects.Builder.of(UField.Factory.of("user"))
+                                .ofSourceType(MyObject.class)
+                                .ofContextMap(PojoToMapTest::addSubMap)
+                                .parallelOn(ForkJoinPool.commonPool())
+                                .parallelField(managerField(10))
+                                .field(UCField.Builder.uniExtractingOf(UField.Factory.of("name"), MyObject::getName)
+                                        .withWriterJF(UWRITER))
+                                .build()
+                );
+
+        Map<String, Object> ctx = new ConcurrentHashMap<>();
+        converter.consume("brian,harry,ron", ctx);
+
+        Assert.assertThat(lookups, equalTo(Collections.singletonList(set("brian", "harry", "ron"))));
+        Assert.assertThat(managers(ctx), equalTo(Arrays.asList("BRIAN", "HARRY", "RON")));
+    }
+
+    private UBiPipeline<String, Map<String, Object>> usersConverter(int windowSize) {
+        return UCObjects.Builder.of(UField.Factory.of("items"))
+                .ofSourceType(String.class)
+                .ofContextMapF(PojoToMapTest::newListOfMaps)
+                .flatMap(q -> Arrays.stream(q.split(",")).map(n -> new MyObject(n, 1)).collect(Collectors.toList()))
+                .pipeTo(
+                        UCObjects.Builder.of(UField.Factory.of("user"))
+                                .ofSourceType(MyObject.class)
+                                .ofContextMap(PojoToMapTest::addSubMap)
+                                .field(UCField.Builder.uniExtractingOf(UField.Factory.of("name"), MyObject::getName)
+                                        .withWriterJF(UWRITER))
+                                .field(managerField(windowSize))
+                                .build()
+                );
+    }
+
+    private UCField.Batching<MyObject, Map<String, Object>, String, String> managerField(int windowSize) {
+        return UCField.Builder.<MyObject, Map<String, Object>, String, String>batchingOf(
+                UField.Factory.of("manager"), MyObject::getName, this::findManagers, windowSize)
+                .withWriterJF(UWRITER);
+    }
+
+    private Map<String, String> findManagers(Set<String> names) {
+        lookups.add(new LinkedHashSet<>(names));
+        return names.stream()
+                .filter(n -> !"unknown".equals(n))
+                .collect(Collectors.toMap(n -> n, String::toUpperCase));
+    }
+
+    private List<Object> managers(Map<String, Object> ctx) {
+        List<Map<String, Object>> items = (List<Map<String, Object>>) ctx.get("items");
+        return items.stream().map(i -> i.get("manager")).collect(Collectors.toList());
+    }
+
+    private static Set<String> set(String... names) {
+        return new LinkedHashSet<>(Arrays.asList(names));
+    }
+}
@@ -0,0 +1,57 @@
+package com.shaposhnyk.unilines.map;
+
+import com.shaposhnyk.unilines.UBiPipeline;
+import com.shaposhnyk.unilines.UField;
+import com.shaposhnyk.unilines.builders.UCField;
+import com.shaposhnyk.unilines.map.helpers.MyObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+
+/**
+ * Pipelines collecting parallel streams into thread-confined contexts
+ */
+public class CollectorTest extends ConverterBase {
+
+    @Test
+    public void listsAreConcatenatedInEncounterOrder() {
+        UBiPipeline<MyObject, List<String>> conv = UCField.Builder.of(UField.Factory.of("name"))
+                .withConsumerJ((MyObject s, List<String> c) -> c.add(s.getName()));
+
+        List<String> result = IntStream.range(0, 10000)
+                .parallel()
+                .mapToObj(i -> new MyObject("n" + i, i))
+                .collect(conv.asCollectorJ(ArrayList::new, (l, r) -> {
+                    l.addAll(r);
+                    return l;
+                }));
+
+        List<String> expected = IntStream.range(0, 10000).mapToObj(i -> "n" + i).collect(Collectors.toList());
+        Assert.assertThat(result, equalTo(expected));
+    }
+
+    @Test
+    public void mapsAreMerged() {
+        UBiPipeline<MyObject, Map<String, Integer>> conv = UCField.Builder.of(UField.Factory.of("value"))
+                .withConsumerJ((MyObject s, Map<String, Integer> c) -> c.merge(s.getName(), s.getValue(), Integer::sum));
+
+        Map<String, Integer> result = IntStream.range(0, 10000)
+                .parallel()
+                .mapToObj(i -> new MyObject(i % 2 == 0 ? "even" : "odd", 1))
+                .collect(conv.asCollectorJ(HashMap::new, (l, r) -> {
+                    r.forEach((k, v) -> l.merge(k, v, Integer::sum));
+                    return l;
+                }));
+
+        Assert.assertThat(result.get("even"), equalTo(5000));
+        Assert.assertThat(result.get("odd"), equalTo(5000));
+    }
+}
@@ -0,0 +1,132 @@
+package com.shaposhnyk.unilines.map;
+
+import com.shaposhnyk.unilines.UBiPipeline;
+import com.shaposhnyk.unilines.UField;
+import com.shaposhnyk.unilines.builders.UCField;
+import com.shaposhnyk.unilines.builders.UCObjects;
+import com.shaposhnyk.unilines.builders.UHCBuilder;
+import com.shaposhnyk.unilines.map.helpers.MyObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+
+/**
+ * Object-level guards: rejected objects skip context creation, fields and nested flatMaps
+ */
+public class GuardTest extends ConverterBase {
+    private final AtomicInteger contexts = new AtomicInteger();
+    private final AtomicInteger extracted = new AtomicInteger();
+
+    private UBiPipeline<MyObject, Map<String, Object>> userConverter() {
+        UCField.UExtracting<MyObject, Map<String, Object>, Integer> value = UCField.Builder
+                .uniExtractingOf(UField.Factory.of("value"), MyObject::getValue);
+        return UCObjects.Builder.of(UField.Factory.of("user"))
+                .ofSourceType(MyObject.class)
+                .ofContextMap((Map<String, Object> c) -> newChild(c))
+                .guardJ((MyObject o) -> o.getName() != null)
+                .guardJ(value, (Integer v) -> v > 10)
+                .field(UCField.Builder.<MyObject, Map<String, Object>, String>uniExtractingOf(UField.Factory.of("name"), o -> {
+                    extracted.incrementAndGet();
+                    return o.getName();
+                }).withWriterJ((Object v, Map<String, Object> c) -> c.put("name", v)))
+                .field(UCObjects.Builder.<MyObject, Map<String, Object>>of(UField.Factory.of("items"))
+                        .flatMap((MyObject o) -> {
+                            extracted.incrementAndGet();
+                            return Collections.singletonList(o);
+                        })
+                        .build())
+                .build();
+    }
+
+    private Map<String, Object> newChild(Map<String, Object> parent) {
+        contexts.incrementAndGet();
+        Map<String, Object> child = new HashMap<>();
+        parent.put("user" + parent.size(), child);
+        return child;
+    }
+
+    @Test
+    public void rejectedObjectsAreSkipped() {
+        UBiPipeline<MyObject, Map<String, Object>> converter = userConverter();
+        Map<String, Object> ctx = new HashMap<>();
+
+        converter.consume(new MyObject(null, 42), ctx);
+        converter.consume(new MyObject("Small", 5), ctx);
+        Assert.assertThat(ctx, equalTo(Collections.emptyMap()));
+        Assert.assertThat(contexts.get(), equalTo(0));
+        Assert.assertThat(extracted.get(), equalTo(0));
+
+        converter.consume(new MyObject("Some", 42), ctx);
+        Assert.assertThat(ctx, equalTo(Collections.singletonMap("user0", Collections.singletonMap("name", "Some"))));
+        Assert.assertThat(contexts.get(), equalTo(1));
+        Assert.assertThat(extracted.get(), equalTo(2));
+    }
+
+    @Test
+    public void guardsAreKeptByContextMappings() {
+        UBiPipeline<MyObject, Map<String, Object>> converter = UCObjects.Builder.of(UField.Factory.of("user"))
+                .ofSourceType(MyObject.class)
+                .guardJ((MyObject o) -> o.getName() != null)
+                .ofContextMap((Map<String, Object> c) -> newChild(c))
+                .field(UCField.Builder.<MyObject, Map<String, Object>, String>uniExtractingOf(UField.Factory.of("name"), MyObject::getName)
+                        .withWriterJ((Object v, Map<String, Object> c) -> c.put("name", v)))
+                .build();
+        Map<String, Object> ctx = new HashMap<>();
+
+        converter.consume(new MyObject(null, 42), ctx);
+        Assert.assertThat(ctx, equalTo(Collections.emptyMap()));
+        Assert.assertThat(contexts.get(), equalTo(0));
+
+        converter.consume(new MyObject("Some", 42), ctx);
+        Assert.assertThat(ctx, equalTo(Collections.singletonMap("user0", Collections.singletonMap("name", "Some"))));
+    }
+
+    @Test
+    public void rejectedObjectsHaveNoItems() {
+        List<String> ctx = new ArrayList<>();
+        UBiPipeline<MyObject, List<String>> converter = UCObjects.Builder.of(UField.Factory.of("items"))
+                .ofSourceType(MyObject.class)
+                .ofContextType(ctx)
+                .guardJ((MyObject o) -> o.getValue() > 10)
+                .flatMap((MyObject o) -> {
+                    extracted.incrementAndGet();
+                    return Collections.singletonList(o.getName());
+                })
+                .field(UCField.Builder.of(UField.Factory.of("item")).withConsumerJ((String s, List<String> c) -> c.add(s)))
+                .build();
+
+        converter.consume(new MyObject("Small", 5), ctx);
+        Assert.assertThat(ctx, equalTo(Collections.emptyList()));
+        Assert.assertThat(extracted.get(), equalTo(0));
+
+        converter.consume(new MyObject("Some", 42), ctx);
+        Assert.assertThat(ctx, equalTo(Collections.singletonList("Some")));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sourceMappingsAfterGuardsAreRejected() {
+        UCObjects.Builder.of(UField.Factory.of("user"))
+                .ofSourceType(MyObject.class)
+                .guardJ((MyObject o) -> o.getName() != null)
+                .mapS(MyObject::getName);
+    }
+
+    @Test
+    public void guardedCopiesHaveTheirOwnFields() {
+        UHCBuilder<MyObject, List<String>, MyObject, List<String>> base = UCObjects.Builder.of(UField.Factory.of("user"))
+                .ofSourceType(MyObject.class)
+                .ofContextType((List<String>) new ArrayList<String>());
+        base.field(UCField.Builder.of(UField.Factory.of("name")).withConsumerJ((MyObject o, List<String> c) -> c.add(o.getName())));
+        base.guardJ((MyObject o) -> o.getName() != null)
+                .field(UCField.Builder.of(UField.Factory.of("value")).withConsumerJ((MyObject o, List<String> c) -> c.add("value")));
+        List<String> ctx = new ArrayList<>();
+
+        base.build().consume(new MyObject("Some", 42), ctx);
+
+        Assert.assertThat(ctx, equalTo(Collections.singletonList("Some")));
+    }
+}
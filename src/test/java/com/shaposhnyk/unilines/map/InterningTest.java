@@ -0,0 +1,108 @@
+package com.shaposhnyk.unilines.map;
+
+import com.shaposhnyk.unilines.UBiPipeline;
+import com.shaposhnyk.unilines.UField;
+import com.shaposhnyk.unilines.UTriConsumer;
+import com.shaposhnyk.unilines.builders.UCField;
+import com.shaposhnyk.unilines.builders.UCFootprint;
+import com.shaposhnyk.unilines.builders.UCInterner;
+import com.shaposhnyk.unilines.builders.UCObjects;
+import com.shaposhnyk.unilines.map.helpers.MyObject;
+import org.hamcrest.collection.IsCollectionWithSize;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Sharing of identical sub-pipelines between similar object types
+ */
+public class InterningTest extends ConverterBase {
+
+    private static final UTriConsumer<UField, Object, Map<String, Object>> UWRITER = (f, s, ctx) -> ctx.put(f.externalName(), s);
+
+    @Test
+    public void identicalFieldsAreEqual() {
+        Assert.assertThat(nameField(), equalTo(nameField()));
+        Assert.assertThat(listField(), equalTo(listField()));
+        Assert.assertThat(nameField(), not(equalTo(listField())));
+    }
+
+    @Test
+    public void identicalFieldsAreShared() {
+        UCInterner interner = new UCInterner();
+        UBiPipeline<MyObject, Map<String, Object>> first = interner.intern(objectOf("first"));
+        UBiPipeline<MyObject, Map<String, Object>> second = interner.intern(objectOf("second"));
+
+        Assert.assertThat(first.fields(), IsCollectionWithSize.hasSize(3));
+        Assert.assertThat(second.fields(), IsCollectionWithSize.hasSize(3));
+
+        Assert.assertTrue(first.fields().get(0) == second.fields().get(0));
+        Assert.assertTrue(first.fields().get(1) == second.fields().get(1));
+        Assert.assertTrue(first.fields().get(2) != second.fields().get(2));
+
+        // 2 shared fields + 2 specific fields + 2 roots
+        Assert.assertThat(interner.size(), equalTo(6));
+    }
+
+    @Test
+    public void internedPipelineConvertsTheSame() {
+        UBiPipeline<MyObject, Map<String, Object>> pipeline = new UCInterner().intern(objectOf("first"));
+
+        Map<String, Object> ctx = new ConcurrentHashMap<>();
+        pipeline.consume(new MyObject("Some", 42), ctx);
+
+        Assert.assertThat(ctx.get("name"), equalTo("SOME"));
+        Assert.assertThat(ctx.get("myList"), equalTo(Arrays.asList("Some1", "Some2")));
+        Assert.assertThat(ctx.get("first"), equalTo("3"));
+    }
+
+    @Test
+    public void sharedNodesAreAccountedOnce() {
+        UCInterner interner = new UCInterner();
+        UBiPipeline<MyObject, Map<String, Object>> first = interner.intern(objectOf("first"));
+        UBiPipeline<MyObject, Map<String, Object>> second = interner.intern(objectOf("second"));
+
+        UCFootprint footprint = new UCFootprint();
+        UCFootprint.Report firstReport = footprint.estimate(first);
+        UCFootprint.Report secondReport = footprint.estimate(second);
+
+        Assert.assertThat(firstReport.getNodes(), IsCollectionWithSize.hasSize(4));
+        Assert.assertThat(firstReport.getNodes().get(1).getPath(), equalTo("root/name"));
+        Assert.assertThat(firstReport.getNodes().get(1).getBytes(), greaterThan(0L));
+
+        Assert.assertThat(secondReport.getNodes().get(1).getBytes(), equalTo(0L));
+        Assert.assertThat(secondReport.bytes(), lessThan(firstReport.bytes()));
+    }
+
+    private UBiPipeline<MyObject, Map<String, Object>> objectOf(String specificField) {
+        Map<String, Object> ctx = new ConcurrentHashMap<>();
+
+        return UCObjects.Builder.of(UField.Factory.of("root"))
+                .ofSourceType(MyObject.class)
+                .ofContextType(ctx)
+                .field(nameField())
+                .field(listField())
+                .field(UCField.Builder.uniExtractingOf(UField.Factory.of(specificField), MyObject::getNumberLike)
+                        .withWriterJF(UWRITER))
+                .build();
+    }
+
+    private UCField.UExtracting<MyObject, Map<String, Object>, String> nameField() {
+        return UCField.Builder.uniExtractingOf(UField.Factory.of("name"), MyObject::getName)
+                .withWriterJF(UWRITER)
+                .decorateJ(String::toUpperCase);
+    }
+
+    private UCField.UExtracting<MyObject, Map<String, Object>, ?> listField() {
+        return UCField.Builder.uniExtractingOf(UField.Factory.of("myList"), MyObject::getArray)
+                .withWriterJF(UWRITER)
+                .mapJ(s -> Arrays.asList(s.split(",")));
+    }
+}
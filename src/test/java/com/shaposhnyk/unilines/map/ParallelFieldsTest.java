@@ -0,0 +1,178 @@
+package com.shaposhnyk.unilines.map;
+
+import com.shaposhnyk.unilines.UBiPipeline;
+import com.shaposhnyk.unilines.UField;
+import com.shaposhnyk.unilines.builders.UCField;
+import com.shaposhnyk.unilines.builders.UCObjects;
+import com.shaposhnyk.unilines.builders.UCShortCircuit;
+import com.shaposhnyk.unilines.map.helpers.MyObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+
+/**
+ * Concurrent execution of expensive sibling fields
+ */
+public class ParallelFieldsTest extends ConverterBase {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void bufferedFieldsAreMergedInDeclarationOrder() {
+        CountDownLatch latch = new CountDownLatch(3);
+        List<String> ctx = new ArrayList<>();
+
+        UBiPipeline<MyObject, List<String>> conv = UCObjects.Builder.of(UField.Factory.of("root"))
+                .ofSourceType(MyObject.class)
+                .ofContextType(ctx)
+                .parallelJ(executor, c -> new ArrayList<>(), (b, c) -> c.addAll(b))
+                .field(expensive("first", latch))
+                .field(expensive("second", latch))
+                .field(expensive("third", latch))
+                .build();
+
+        conv.consume(new MyObject("Some", 42), ctx);
+
+        Assert.assertThat(ctx, equalTo(Arrays.asList("first:Some", "second:Some", "third:Some")));
+    }
+
+    @Test
+    public void onlyMarkedFieldsAreConcurrent() {
+        CountDownLatch latch = new CountDownLatch(2);
+        Map<String, Object> ctx = new ConcurrentHashMap<>();
+
+        UBiPipeline<MyObject, Map<String, Object>> conv = UCObjects.Builder.of(UField.Factory.of("root"))
+                .ofSourceType(MyObject.class)
+                .ofContextType(ctx)
+                .parallelOn(executor)
+                .parallelField(expensiveMap("first", latch))
+                .parallelField(expensiveMap("second", latch))
+                .field(simpleInt())
+                .build();
+
+        conv.consume(new MyObject("Some", 42), ctx);
+
+        Assert.assertThat(ctx.get("first"), equalTo("Some"));
+        Assert.assertThat(ctx.get("second"), equalTo("Some"));
+        Assert.assertThat(ctx.get("ext"), equalTo("Some"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void errorsArePropagated() {
+        List<String> ctx = new ArrayList<>();
+
+        UBiPipeline<MyObject, List<String>> conv = UCObjects.Builder.of(UField.Factory.of("root"))
+                .ofSourceType(MyObject.class)
+                .ofContextType(ctx)
+                .parallelJ(executor, c -> new ArrayList<>(), (b, c) -> c.addAll(b))
+                .field(UCField.Builder.of(UField.Factory.of("failing")).withConsumerJ((MyObject s, List<String> c) -> {
+                    throw new IllegalStateException("failing");
+                }))
+                .build();
+
+        conv.consume(new MyObject("Some", 42), ctx);
+    }
+
+    @Test(timeout = 10000)
+    public void nestedParallelObjectsShareBoundedExecutor() {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            List<String> ctx = new ArrayList<>();
+            UBiPipeline<MyObject, List<String>> conv = UCObjects.Builder.of(UField.Factory.of("root"))
+                    .ofSourceType(MyObject.class)
+                    .ofContextType(ctx)
+                    .parallelJ(single, c -> new ArrayList<>(), (b, c) -> c.addAll(b))
+                    .field(nested("first", single))
+                    .field(nested("second", single))
+                    .field(nested("third", single))
+                    .build();
+
+            conv.consume(new MyObject("Some", 42), ctx);
+
+            Assert.assertThat(ctx, equalTo(Arrays.asList("first.a:Some", "first.b:Some", "second.a:Some",
+                    "second.b:Some", "third.a:Some", "third.b:Some")));
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void stopOfParallelFieldStopsEnclosingFlatMap() {
+        List<String> ctx = new ArrayList<>();
+        UBiPipeline<List<MyObject>, List<String>> conv = UCObjects.Builder.of(UField.Factory.of("items"))
+                .<List<MyObject>, List<MyObject>>ofSourceMap(l -> l)
+                .ofContextType(ctx)
+                .flatMap(l -> l)
+                .pipeTo(UCObjects.Builder.of(UField.Factory.of("item"))
+                        .ofSourceType(MyObject.class)
+                        .ofContextType(ctx)
+                        .parallelJ(executor, c -> new ArrayList<>(), (b, c) -> c.addAll(b))
+                        .field(UCField.Builder.of(UField.Factory.of("name")).withConsumerJ((MyObject s, List<String> c) -> {
+                            c.add(s.getName());
+                            if (s.getValue() == 2) {
+                                UCShortCircuit.stop();
+                            }
+                        }))
+                        .field(UCField.Builder.of(UField.Factory.of("value")).withConsumerJ((MyObject s, List<String> c) ->
+                                c.add(String.valueOf(s.getValue()))))
+                        .build());
+
+        conv.consume(Arrays.asList(new MyObject("a", 1), new MyObject("b", 2), new MyObject("c", 3)), ctx);
+
+        Assert.assertThat(ctx, equalTo(Arrays.asList("a", "1", "b", "2")));
+    }
+
+    private UBiPipeline<MyObject, List<String>> nested(String name, ExecutorService pool) {
+        return UCObjects.Builder.of(UField.Factory.of(name))
+                .ofSourceType(MyObject.class)
+                .ofContextType((List<String>) new ArrayList<String>())
+                .parallelJ(pool, c -> new ArrayList<>(), (b, c) -> c.addAll(b))
+                .field(UCField.Builder.of(UField.Factory.of("a")).withConsumerJ((MyObject s, List<String> c) ->
+                        c.add(name + ".a:" + s.getName())))
+                .field(UCField.Builder.of(UField.Factory.of("b")).withConsumerJ((MyObject s, List<String> c) ->
+                        c.add(name + ".b:" + s.getName())))
+                .build();
+    }
+
+    /**
+     * Completes only if all the fields sharing the latch are executed concurrently
+     */
+    private UCField.Simple<MyObject, List<String>> expensive(String name, CountDownLatch latch) {
+        return UCField.Builder.of(UField.Factory.of(name)).withConsumerJ((MyObject s, List<String> c) -> {
+            await(latch);
+            c.add(name + ":" + s.getName());
+        });
+    }
+
+    private UCField.Simple<MyObject, Map<String, Object>> expensiveMap(String name, CountDownLatch latch) {
+        return UCField.Builder.of(UField.Factory.of(name)).withConsumerJ((MyObject s, Map<String, Object> c) -> {
+            await(latch);
+            c.put(name, s.getName());
+        });
+    }
+
+    private void await(CountDownLatch latch) {
+        latch.countDown();
+        try {
+            Assert.assertTrue("fields are not concurrent", latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.shaposhnyk.unilines
 import org.junit.Test
 import kotlin.test.assertEquals
 import kotlin.test.assertNotEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
 
 class UFieldTest {
 
@@ -54,4 +56,56 @@ class UFieldTest {
         val simplePublic = simple.isPublic(true)
         assert(simple === simplePublic)
     }
+
+    @Test
+    fun testInterned() {
+        val first = UField.intern(UField.of("some", "someone"))
+        val second = UField.intern(UField.of("some", "someone"))
+        assert(first === second)
+        assert(first.id() >= 0)
+        assert(UField.byId(first.id()) === first)
+    }
+
+    @Test
+    fun testInternedIdsAreDense() {
+        val first = UField.intern(UField.of("dense1"))
+        val second = UField.intern(UField.of("dense1").description("second"))
+        assertEquals(first.id() + 1, second.id())
+        assertEquals(second.id(), UField.intern(UField.of("dense1").description("second")).id())
+        assertTrue(UField.internedCount() > second.id())
+    }
+
+    @Test
+    fun testFieldsAreNotInternedByDefault() {
+        assertEquals(-1, UField.of("runtime").id())
+        assertEquals(-1, UField.of("runtime").description("built per request").id())
+    }
+
+    @Test
+    fun testInternNotInterned() {
+        val immutable = UField.Factory.ImmutableField("other", "someone")
+        assertEquals(-1, immutable.id())
+        assert(UField.intern(immutable) === UField.intern(UField.of("other", "someone")))
+        assertEquals(UField.intern(immutable), immutable)
+    }
+
+    @Test
+    fun testFieldOf() {
+        val filter = UField.of("some").filtering(true)
+        assertTrue(filter.hasFilter())
+        assertEquals(UField.of("some"), filter.filtering(false))
+    }
+
+    @Test
+    fun testFieldTable() {
+        val table = UFieldTable<String>()
+        val f = UField.of("table")
+        assertNull(table[f])
+
+        table[f] = "value"
+        assertEquals("value", table[f])
+        assertEquals("value", table[UField.Factory.SimpleImmutableField("table", "table")])
+        assertEquals("value", table.computeIfAbsent(f, { "other" }))
+        assertEquals(listOf(Pair(f, "value")), table.entries())
+    }
 }
@@ -0,0 +1,78 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class UCAdaptiveFiltersTest {
+    private val written = mutableListOf<String?>()
+
+    private fun field() = UCField.Simple<String, Unit>(UField.of("name"), { s, _ -> written.add(s) })
+
+    private fun inputs() = (0 until 5000).map { i -> if (i % 7 == 0) null else "v" + (i % 100) }
+
+    @Test
+    fun testSelectiveFilterIsEvaluatedFirst() {
+        var selective = 0
+        var evaluated = 0
+        val field = field()
+                .adaptiveFilters()
+                .filterS { s -> selective += 1; s == null || s.endsWith("7") }
+                .filterS { s -> evaluated += 1; s != "v1" }
+        inputs().forEach { field.consume(it, Unit) }
+
+        val expected = inputs().filter { s -> (s == null || s.endsWith("7")) && s != "v1" }
+        assertEquals(expected, written)
+        // the selective filter sees almost every input, the other one mostly those it passed
+        assertTrue(evaluated < 2000 && evaluated < selective / 2, "selective: $selective, other: $evaluated")
+    }
+
+    @Test
+    fun testOriginalOrderIsKeptForResults() {
+        var nullChecks = 0
+        val field = field()
+                .filterS { s -> s!!.length > 2 && s.endsWith("1") }
+                .filterS { s -> nullChecks += 1; s != null }
+                .adaptiveFilters()
+        inputs().forEach { field.consume(it, Unit) }
+
+        assertEquals(inputs().filter { s -> s != null && s.length > 2 && s.endsWith("1") }, written)
+        // null inputs fail the selective filter evaluated first, and are checked again in the original order
+        assertTrue(nullChecks < 2500, "null checks: $nullChecks")
+    }
+
+    @Test
+    fun testFailuresOfTheOriginalOrderAreKept() {
+        var failures = 0
+        val field = field()
+                .filterS { s -> s != null && s.endsWith("7") }
+                .filterS { s -> s!!.length > 2 }
+                .adaptiveFilters()
+        inputs().forEach { s ->
+            try {
+                field.consume(s, Unit)
+            } catch (e: NullPointerException) {
+                failures += 1
+            }
+        }
+
+        assertEquals(inputs().filter { s -> s != null && s.length > 2 && s.endsWith("7") }, written)
+        // the selective filter is not moved before the one failing on nulls
+        assertEquals(inputs().count { it == null }, failures)
+    }
+
+    @Test
+    fun testAdaptivePostFilters() {
+        val values = mutableListOf<Int?>()
+        var nullChecks = 0
+        val field = UCField.Extracting<Int, Unit, Int>(UField.of("n"), { i -> i }, { v, _ -> values.add(v) })
+                .adaptivePostFilters()
+                .postFilter { v -> v!! % 10 == 0 }
+                .postFilter { v -> nullChecks += 1; v != null }
+        (0 until 5000).forEach { field.consume(it, Unit) }
+
+        assertEquals<List<Int?>>((0 until 5000).filter { it % 10 == 0 }, values)
+        assertTrue(nullChecks < 2500, "null checks: $nullChecks")
+    }
+}
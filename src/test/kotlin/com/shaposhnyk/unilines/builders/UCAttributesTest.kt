@@ -0,0 +1,137 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import org.junit.Test
+import java.util.function.Consumer
+import javax.naming.directory.BasicAttribute
+import javax.naming.directory.BasicAttributes
+import javax.naming.directory.SearchResult
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class UCAttributesTest {
+    private fun attr(intName: String, extName: String) =
+            UCField.attributeOf<SearchResult, MutableMap<String, Any?>>(UField.of(intName, extName), UCAttributes.searchResult())
+                    .withWriter { v, c: MutableMap<String, Any?> -> c.put(extName, v) }
+
+    private fun entry(): SearchResult {
+        val attrs = BasicAttributes()
+        attrs.put("sAMAccountName", "bgoetz")
+        attrs.put("telephoneNumber", "+1 888")
+        attrs.put(BasicAttribute("memberOf").apply { add("g1"); add("g2") })
+        return SearchResult("CN=Brian Goetz", null, attrs)
+    }
+
+    @Test
+    fun testAttributesAreRead() {
+        val ctx = mutableMapOf<String, Any?>()
+        UCObjects.of<SearchResult, MutableMap<String, Any?>>(UField.of("user"))
+                .field(attr("sAMAccountName", "login"))
+                .field(attr("memberOf", "groups"))
+                .field(attr("mail", "email"))
+                .build()
+                .consume(entry(), ctx)
+
+        assertEquals(mapOf<String, Any?>("login" to "bgoetz", "groups" to listOf("g1", "g2"), "email" to null), ctx)
+    }
+
+    @Test
+    fun testRequiredAttributes() {
+        val pipeline = UCObjects.of<SearchResult, MutableMap<String, Any?>>(UField.of("user"))
+                .field(attr("sAMAccountName", "login").decorate { s -> s.toString().toUpperCase() })
+                .field(attr("telephoneNumber", "phone").withExtractionErrorHandler { _, _ -> null })
+                .field(UCObjects.of<SearchResult, MutableMap<String, Any?>>(UField.of("names"))
+                        .field(attr("cn", "fullName").postFilter { v -> v != null })
+                        .field(attr("sAMAccountName", "login"))
+                        .build())
+                .field(UCField.Builder.contextMapperOf<SearchResult, MutableMap<String, Any?>>(UField.of("post"), Consumer { c -> c.remove("x") }))
+                .build()
+
+        val report = UCAttributes.requiredBy(pipeline)
+
+        assertEquals(listOf("sAMAccountName", "telephoneNumber", "cn"), report.attributes.toList())
+        assertTrue(report.isExact())
+    }
+
+    @Test
+    fun testCustomExtractorsAreReported() {
+        val id = UCField.Extracting<SearchResult, MutableMap<String, Any?>, String>(UField.of("id"), { sr -> sr?.name })
+        val pipeline = UCObjects.of<SearchResult, MutableMap<String, Any?>>(UField.of("user"))
+                .field(attr("mail", "email"))
+                .field(id)
+                .build()
+
+        val report = UCAttributes.requiredBy(pipeline)
+
+        assertEquals(setOf("mail"), report.attributes)
+        assertFalse(report.isExact())
+        assertEquals(listOf("id"), report.opaqueFields.map { it.externalName() })
+    }
+
+    @Test
+    fun testMappedSourcesAreNotWalked() {
+        val manager = UCObjects.of<SearchResult, MutableMap<String, Any?>>(UField.of("manager"))
+                .mapS { sr -> sr }
+                .field(attr("mail", "email"))
+                .build()
+        val groups = UCObjects.of<SearchResult, MutableMap<String, Any?>>(UField.of("groups"))
+                .flatMap { sr -> listOf(sr!!) }
+                .field(attr("cn", "name"))
+                .build()
+        val pipeline = UCObjects.of<SearchResult, MutableMap<String, Any?>>(UField.of("user"))
+                .field(attr("sAMAccountName", "login"))
+                .field(manager)
+                .field(groups)
+                .build()
+
+        val report = UCAttributes.requiredBy(pipeline)
+
+        assertEquals(setOf("sAMAccountName"), report.attributes)
+        assertEquals(listOf("manager", "groups"), report.opaqueFields.map { it.externalName() })
+    }
+
+    @Test
+    fun testAttributeMappedSourcesAreReported() {
+        val managerOf = UCField.attributeOf<SearchResult, MutableMap<String, Any?>>(UField.of("manager"), UCAttributes.searchResult())
+        val pipeline = UCObjects.of<SearchResult, MutableMap<String, Any?>>(UField.of("user"))
+                .field(attr("sAMAccountName", "login"))
+                .field(UCObjects.of<SearchResult, MutableMap<String, Any?>>(UField.of("manager"))
+                        .mapS(managerOf.extractor())
+                        .field(UCField.attributeOf<Any, MutableMap<String, Any?>>(UField.of("mail"), UCAttributes.of { _, _ -> null }))
+                        .build())
+                .build()
+
+        val report = UCAttributes.requiredBy(pipeline)
+
+        assertEquals(listOf("sAMAccountName", "manager"), report.attributes.toList())
+        assertTrue(report.isExact())
+    }
+
+    @Test
+    fun testGuardsAreReported() {
+        val disabled = UCField.attributeOf<SearchResult, MutableMap<String, Any?>>(UField.of("userAccountControl"), UCAttributes.searchResult())
+        val pipeline = UCObjects.of<SearchResult, MutableMap<String, Any?>>(UField.of("user"))
+                .guard(disabled, { v -> v != "514" })
+                .field(attr("sAMAccountName", "login"))
+                .field(UCObjects.of<SearchResult, MutableMap<String, Any?>>(UField.of("names"))
+                        .guard(disabled, { v -> v != null })
+                        .guard { sr -> sr!!.name.startsWith("CN=") }
+                        .field(attr("cn", "fullName"))
+                        .build())
+                .build()
+
+        val report = UCAttributes.requiredBy(pipeline)
+
+        assertEquals(listOf("userAccountControl", "sAMAccountName", "cn"), report.attributes.toList())
+        assertEquals(listOf("names"), report.opaqueFields.map { it.externalName() })
+    }
+
+    @Test
+    fun testMapAndCustomSources() {
+        val map = mapOf("a" to 1)
+        assertEquals(1, UCAttributes.map().get(map, "a"))
+        val node = UCAttributes.of { m: Map<String, Int>, name -> m[name]?.times(10) }
+        assertEquals(10, node.get(map, "a"))
+    }
+}
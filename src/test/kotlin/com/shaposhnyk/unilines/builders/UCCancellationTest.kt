@@ -0,0 +1,87 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class UCCancellationTest {
+
+    private class ClosableItems(val size: Int) : Iterable<Int>, AutoCloseable {
+        var closed = false
+
+        override fun iterator(): Iterator<Int> = (1..size).iterator()
+
+        override fun close() {
+            closed = true
+        }
+    }
+
+    private fun field(name: String, extractor: (Int?) -> Int?) =
+            UCField.Extracting<Int, MutableList<String>, Int>(UField.of(name), extractor,
+                    { r, c -> c.add(name + "=" + r) })
+
+    @Test
+    fun testFlatMapStopsBetweenItems() {
+        val token = UCCancellation()
+        val items = ClosableItems(1000)
+        val ctx = mutableListOf<String>()
+        val pipeline = UCObjects.of<Int, MutableList<String>>(UField.of("items"))
+                .flatMap({ _ -> items })
+                .field(field("id", { i -> if (i == 3) token.cancel(); i }))
+                .build()
+
+        assertFailsWith(UCCancelledException::class, {
+            token.attach { pipeline.consume(0, ctx) }
+        })
+
+        assertEquals(listOf("id=1", "id=2", "id=3"), ctx)
+        assertTrue(items.closed)
+    }
+
+    @Test
+    fun testStopsBetweenSiblingFields() {
+        val token = UCCancellation()
+        val ctx = mutableListOf<String>()
+        val pipeline = UCObjects.of<Int, MutableList<String>>(UField.of("user"))
+                .field(field("first", { token.cancel(); it }))
+                .field(field("second", { it }))
+                .build()
+
+        assertFailsWith(UCCancelledException::class, {
+            token.attach { pipeline.consume(1, ctx) }
+        })
+
+        assertEquals(listOf("first=1"), ctx)
+    }
+
+    @Test
+    fun testCancellationIsNotSilenced() {
+        val token = UCCancellation()
+        token.cancel()
+        val ctx = mutableListOf<String>()
+        val pipeline = UCObjects.of<Int, MutableList<String>>(UField.of("user"))
+                .field(field("first", { token.check(); it }).silenceErrors())
+                .build()
+
+        assertFailsWith(UCCancelledException::class, {
+            token.attach { pipeline.consume(1, ctx) }
+        })
+        assertTrue(ctx.isEmpty())
+    }
+
+    @Test
+    fun testWithoutTokenConvertsEverything() {
+        val ctx = mutableListOf<String>()
+        UCObjects.of<Int, MutableList<String>>(UField.of("items"))
+                .flatMap({ _ -> ClosableItems(3) })
+                .field(field("id", { it }))
+                .build()
+                .consume(0, ctx)
+
+        assertEquals(listOf("id=1", "id=2", "id=3"), ctx)
+        assertNull(UCCancellation.current())
+    }
+}
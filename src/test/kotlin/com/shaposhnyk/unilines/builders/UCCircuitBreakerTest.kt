@@ -0,0 +1,125 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class UCCircuitBreakerTest {
+    private var now = 0L
+    private var calls = 0
+    private var failing = true
+
+    private val config = UCCircuitBreaker.Config()
+            .withWindow(4, 4)
+            .withFailureRate(0.5)
+            .withOpenDuration(1000)
+            .withHalfOpenProbes(2)
+
+    private val breakers = UCCircuitBreakers(config, { now })
+
+    private val f = UField.of("manager")
+
+    private val field = UCField.Extracting<String, MutableMap<String, String?>, String>(f, { s ->
+        calls += 1
+        if (failing) throw IllegalStateException("backend is down") else s?.toUpperCase()
+    }, { r, c -> c.put("manager", r) })
+            .withExtractionCircuitBreaker(breakers, "unknown")
+            .silenceErrors()
+
+    private fun state() = breakers.snapshots().single().state
+
+    private fun convert(): String? {
+        val ctx = mutableMapOf<String, String?>()
+        field.consume("brian", ctx)
+        return ctx["manager"]
+    }
+
+    @Test
+    fun testOpensOnFailures() {
+        repeat(4) { convert() }
+        assertEquals(4, calls)
+        assertEquals(UCCircuitBreaker.State.OPEN, state())
+
+        assertEquals("unknown", convert())
+        assertEquals(4, calls)
+    }
+
+    @Test
+    fun testClosesAfterSuccessfulProbes() {
+        repeat(4) { convert() }
+        failing = false
+
+        now += 999
+        assertEquals("unknown", convert())
+
+        now += 1
+        assertEquals("BRIAN", convert())
+        assertEquals(UCCircuitBreaker.State.HALF_OPEN, state())
+        assertEquals("BRIAN", convert())
+        assertEquals(UCCircuitBreaker.State.CLOSED, state())
+        assertEquals(6, calls)
+    }
+
+    @Test
+    fun testReopensOnFailedProbe() {
+        repeat(4) { convert() }
+
+        now += 1000
+        convert()
+        assertEquals(UCCircuitBreaker.State.OPEN, state())
+        assertEquals(5, calls)
+    }
+
+    @Test
+    fun testSlowCalls() {
+        val breaker = UCCircuitBreaker(f, config.withSlowCalls(100, 0.5), { now })
+        repeat(4) { i ->
+            val permit = breaker.tryAcquire()
+            assertTrue(permit != UCCircuitBreaker.NOT_PERMITTED)
+            breaker.record(permit, false, if (i % 2 == 0) 150 else 50)
+        }
+        assertEquals(UCCircuitBreaker.NOT_PERMITTED, breaker.tryAcquire())
+
+        val snapshot = breaker.snapshot()
+        assertEquals(UCCircuitBreaker.State.OPEN, snapshot.state)
+        assertEquals(0.5, snapshot.slowCallRate)
+        assertEquals(1, snapshot.rejected)
+    }
+
+    @Test
+    fun testSnapshotsPerField() {
+        convert()
+        val snapshots = breakers.snapshots()
+        assertEquals(listOf(f), snapshots.map { it.field })
+        assertEquals(1.0, snapshots[0].failureRate)
+    }
+
+    @Test
+    fun testLateOutcomeIsNotAProbe() {
+        val breaker = UCCircuitBreaker(f, config, { now })
+        val late = breaker.tryAcquire()
+        repeat(4) { breaker.record(breaker.tryAcquire(), true, 0) }
+        assertEquals(UCCircuitBreaker.State.OPEN, breaker.state())
+
+        now += 1000
+        val probe = breaker.tryAcquire()
+        breaker.record(late, false, 0)
+        breaker.record(probe, false, 0)
+        assertEquals(UCCircuitBreaker.State.HALF_OPEN, breaker.state())
+    }
+
+    @Test
+    fun testBreakersArePerPipeline() {
+        val other = UCField.Extracting<String, MutableMap<String, String?>, String>(UField.of("manager"), { s -> s },
+                { r, c -> c.put("manager", r) })
+                .withExtractionCircuitBreaker(breakers, "unknown")
+        repeat(4) { convert() }
+
+        val ctx = mutableMapOf<String, String?>()
+        other.consume("harry", ctx)
+        assertEquals("harry", ctx["manager"])
+        assertEquals(listOf(UCCircuitBreaker.State.OPEN, UCCircuitBreaker.State.CLOSED), breakers.snapshots().map { it.state })
+    }
+}
@@ -0,0 +1,99 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import org.junit.After
+import org.junit.Test
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class UCDeadlineTest {
+    private val pool = UCDeadline.helperPool(2, 2)
+
+    @After
+    fun shutdown() {
+        pool.shutdownNow()
+    }
+
+    private fun field(name: String, extractor: (String?) -> String?) =
+            UCField.Extracting<String, MutableMap<String, String?>, String>(UField.of(name), extractor,
+                    { r, c -> if (r != null) c.put(name, r) })
+
+    @Test
+    fun testFastExtractorIsWritten() {
+        val ctx = mutableMapOf<String, String?>()
+        field("name", { it?.toUpperCase() })
+                .withDeadline(1000, pool, "fallback")
+                .consume("brian", ctx)
+
+        assertEquals("BRIAN", ctx["name"])
+    }
+
+    @Test
+    fun testSlowExtractorIsAbandoned() {
+        val ctx = mutableMapOf<String, String?>()
+        val start = System.currentTimeMillis()
+        field("name", { Thread.sleep(5000); it })
+                .withDeadline(50, pool, "fallback")
+                .consume("brian", ctx)
+
+        assertEquals("fallback", ctx["name"])
+        assertTrue(System.currentTimeMillis() - start < 2000)
+    }
+
+    @Test
+    fun testSlowExtractorIsOmittedWithoutFallback() {
+        val ctx = mutableMapOf<String, String?>()
+        field("name", { Thread.sleep(5000); it })
+                .withDeadline(50, pool)
+                .consume("brian", ctx)
+
+        assertFalse(ctx.containsKey("name"))
+    }
+
+    @Test
+    fun testRemainingBudgetIsPropagated() {
+        val ctx = mutableMapOf<String, String?>()
+        val pipeline = UCObjects.of<String, MutableMap<String, String?>>(UField.of("user"))
+                .withDeadline(200)
+                .field(UCObjects.of<String, MutableMap<String, String?>>(UField.of("names"))
+                        .withDeadline(10000)
+                        .field(field("remaining", { UCDeadline.remainingMillis().toString() })
+                                .withDeadline(10000, pool))
+                        .build())
+                .build()
+
+        pipeline.consume("brian", ctx)
+
+        assertTrue(ctx["remaining"]!!.toLong() <= 200)
+        assertEquals(Long.MAX_VALUE, UCDeadline.remainingMillis())
+    }
+
+    @Test
+    fun testBudgetIsPropagatedToParallelFields() {
+        val ctx = ConcurrentHashMap<String, String?>()
+        val pipeline = UCObjects.of<String, MutableMap<String, String?>>(UField.of("user"))
+                .withDeadline(200)
+                .parallelField(field("remaining", { UCDeadline.remainingMillis().toString() }))
+                .build()
+
+        pipeline.consume("brian", ctx)
+
+        assertTrue(ctx["remaining"]!!.toLong() <= 200)
+    }
+
+    @Test
+    fun testExpiredDeadlineSkipsExtractor() {
+        val ctx = mutableMapOf<String, String?>()
+        var called = false
+        UCDeadline.within(0, {
+            field("name", { called = true; it })
+                    .withDeadline(1000, pool, "fallback")
+                    .consume("brian", ctx)
+        })
+
+        assertFalse(called)
+        assertEquals("fallback", ctx["name"])
+    }
+}
@@ -0,0 +1,82 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import org.junit.After
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.Writer
+import java.nio.file.Files
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class UCExportRunnerTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val executor = Executors.newFixedThreadPool(3)
+
+    private val converted = ConcurrentHashMap<Int, Int>()
+
+    private var failing = 7
+
+    @After
+    fun shutdown() {
+        executor.shutdownNow()
+    }
+
+    private val pipeline = UCObjects.of<IntRange, Writer>(UField.of("entries"))
+            .flatMap { range -> range!! }
+            .field(UCField.Extracting<Int, Writer, Int>(UField.of("id"),
+                    { i ->
+                        converted.merge(i!!, 1, Int::plus)
+                        if (i == failing) throw IllegalStateException("broken entry") else i
+                    },
+                    { i, w -> w.write("{\"id\":$i}\n") }))
+            .build()
+
+    private val partitions = listOf(1..3, 4..6, 7..9, 10..10)
+
+    private val runner = UCExportRunner(pipeline, { w -> w })
+
+    @Test
+    fun testExportsPartitionsInOrder() {
+        failing = -1
+        val target = folder.root.toPath().resolve("export.ndjson")
+
+        val report = runner.run(partitions, target, executor)
+
+        assertTrue(report.isComplete())
+        assertEquals(listOf(0, 1, 2, 3), report.converted)
+        assertEquals((1..10).map { "{\"id\":$it}" }, Files.readAllLines(target))
+        assertEquals(listOf("export.ndjson"), folder.root.list().toList())
+    }
+
+    @Test
+    fun testResumesFailedPartitionOnly() {
+        val target = folder.root.toPath().resolve("export.xml")
+        val xmlRunner = runner.withHeader("<entries>\n", "</entries>\n")
+
+        val failed = xmlRunner.run(partitions, target, executor)
+        assertFalse(failed.isComplete())
+        assertEquals(setOf(2), failed.failures.keys)
+        assertFalse(Files.exists(target))
+        assertEquals(listOf<String>(), folder.root.list().filter { it.endsWith(".tmp") })
+
+        failing = -1
+        val resumed = xmlRunner.run(partitions, target, executor)
+        assertTrue(resumed.isComplete())
+        assertEquals(listOf(2), resumed.converted)
+        assertEquals(listOf(0, 1, 3), resumed.resumed)
+
+        val lines = Files.readAllLines(target)
+        assertEquals("<entries>", lines.first())
+        assertEquals("</entries>", lines.last())
+        assertEquals((1..10).map { "{\"id\":$it}" }, lines.subList(1, 11))
+        assertEquals(1, converted[1])
+        assertEquals(2, converted[7])
+    }
+}
@@ -0,0 +1,110 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UBiPipeline
+import com.shaposhnyk.unilines.UField
+import org.junit.Test
+import java.util.concurrent.Executors
+import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
+
+class UCFingerprintTest {
+
+    data class Person(val name: String, val age: Int, val emails: List<String>)
+
+    private fun <C> person(writer: (UField, Any?, C) -> Unit): UHCBuilder<Person, C, Person, C> {
+        fun <R> field(name: String, fx: (Person?) -> R?) = UCField.UExtracting<Person, C, R>(UField.of(name), fx,
+                { v, c -> writer(UField.of(name), v, c) })
+
+        val builder = UCObjects.of<Person, C>(UField.of("person"))
+        builder.field(field("name", { it?.name }))
+                .field(field("age", { it?.age }))
+                .field(field("emails", { it?.emails }))
+        return builder
+    }
+
+    private val toMap: UBiPipeline<Person, MutableMap<String, Any?>> =
+            person<MutableMap<String, Any?>>({ f, v, c -> c.put(f.externalName(), v) }).build()
+
+    private val toXml: UBiPipeline<Person, StringBuilder> =
+            person<StringBuilder>({ f, v, c -> c.append("<${f.externalName()}>$v</${f.externalName()}>") }).build()
+
+    private val brian = Person("Brian", 42, listOf("brian@example.com"))
+
+    @Test
+    fun testIndependentOfContextType() {
+        val ofMap = UCFingerprint.consume(toMap, brian, mutableMapOf())
+        val xml = StringBuilder()
+        val ofXml = UCFingerprint.consume(toXml, brian, xml)
+
+        assertEquals(ofMap, ofXml)
+        assertEquals("<name>Brian</name><age>42</age><emails>[brian@example.com]</emails>", xml.toString())
+    }
+
+    @Test
+    fun testStableAndSensitiveToChanges() {
+        val fingerprint = UCFingerprint.consume(toMap, brian, mutableMapOf())
+
+        assertEquals(fingerprint, UCFingerprint.consume(toMap, brian.copy(), mutableMapOf()))
+        assertNotEquals(fingerprint, UCFingerprint.consume(toMap, brian.copy(age = 43), mutableMapOf()))
+        assertNotEquals(fingerprint, UCFingerprint.consume(toMap, brian.copy(emails = listOf()), mutableMapOf()))
+    }
+
+    private fun wrapped(wrap: (UCField.Extracting<Int, MutableMap<String, Any?>, Int>) -> UBiPipeline<Int, MutableMap<String, Any?>>) =
+            UCObjects.of<Int, MutableMap<String, Any?>>(UField.of("item"))
+                    .field(wrap(UCField.Extracting(UField.of("value"), { it }, { v, c -> c.put("value", v) })))
+                    .build()
+
+    @Test
+    fun testWrappedFieldsAreRecorded() {
+        val filtered = wrapped({ it.filter { _, _ -> true } })
+        val silenced = wrapped({ it.silenceErrors() })
+
+        assertNotEquals(UCFingerprint.consume(filtered, 1, mutableMapOf()), UCFingerprint.consume(filtered, 2, mutableMapOf()))
+        assertNotEquals(UCFingerprint.consume(silenced, 1, mutableMapOf()), UCFingerprint.consume(silenced, 2, mutableMapOf()))
+        assertEquals(UCFingerprint.consume(wrapped({ it }), 1, mutableMapOf()), UCFingerprint.consume(filtered, 1, mutableMapOf()))
+    }
+
+    @Test
+    fun testPostFilteredValuesAreNotRecorded() {
+        val odd = wrapped({ it.postFilter { v -> v!! % 2 == 1 } })
+        val adaptive = wrapped({ it.postFilter { v -> v!! % 2 == 1 }.adaptivePostFilters() })
+        val none = UCObjects.of<Int, MutableMap<String, Any?>>(UField.of("item")).build()
+
+        assertEquals(UCFingerprint.consume(wrapped({ it }), 1, mutableMapOf()), UCFingerprint.consume(odd, 1, mutableMapOf()))
+        assertEquals(UCFingerprint.consume(none, 2, mutableMapOf()), UCFingerprint.consume(odd, 2, mutableMapOf()))
+        assertEquals(UCFingerprint.consume(none, 2, mutableMapOf()), UCFingerprint.consume(adaptive, 2, mutableMapOf()))
+        assertNotEquals(UCFingerprint.consume(adaptive, 1, mutableMapOf()), UCFingerprint.consume(adaptive, 3, mutableMapOf()))
+    }
+
+    @Test
+    fun testValuesWithoutContentToString() {
+        val pipeline = UCObjects.of<Any, MutableMap<String, Any?>>(UField.of("item"))
+                .field(UCField.UExtracting<Any, MutableMap<String, Any?>, Any>(UField.of("value"), { it },
+                        { v, c -> c.put("value", v) }))
+                .build()
+
+        assertEquals(UCFingerprint.consume(pipeline, byteArrayOf(1, 2), mutableMapOf()),
+                UCFingerprint.consume(pipeline, byteArrayOf(1, 2), mutableMapOf()))
+        assertEquals(UCFingerprint.consume(pipeline, intArrayOf(1, 2), mutableMapOf()),
+                UCFingerprint.consume(pipeline, intArrayOf(1, 2), mutableMapOf()))
+        assertNotEquals(UCFingerprint.consume(pipeline, intArrayOf(1, 2), mutableMapOf()),
+                UCFingerprint.consume(pipeline, intArrayOf(1, 3), mutableMapOf()))
+        assertEquals(UCFingerprint.consume(pipeline, Any(), mutableMapOf()),
+                UCFingerprint.consume(pipeline, Any(), mutableMapOf()))
+    }
+
+    @Test
+    fun testParallelFieldsHashInTreeOrder() {
+        val executor = Executors.newFixedThreadPool(3)
+        try {
+            val parallel = person<MutableMap<String, Any?>>({ f, v, c -> c.put(f.externalName(), v) })
+                    .parallel(executor, { _ -> mutableMapOf<String, Any?>() }, { b, c -> c.putAll(b) })
+                    .build()
+
+            assertEquals(UCFingerprint.consume(toMap, brian, mutableMapOf()),
+                    UCFingerprint.consume(parallel, brian, mutableMapOf()))
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+}
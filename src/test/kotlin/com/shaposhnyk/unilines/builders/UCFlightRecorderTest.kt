@@ -0,0 +1,66 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import org.junit.After
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.file.Path
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+
+class UCFlightRecorderTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @After
+    fun tearDown() {
+        UCFlightRecorder.disable()
+    }
+
+    private fun pipeline() = UCObjects.of<List<Int>, MutableList<String>>(UField.of("items"))
+            .flatMap { it!! }
+            .field(UCField.Extracting<Int, MutableList<String>, Int>(UField.of("id", "identifier"),
+                    { i -> if (i == 3) throw IllegalStateException("bad") else i },
+                    { i, c -> c.add("id=$i") }))
+            .build()
+
+    @Test
+    fun testEventsAreRecorded() {
+        if (!UCFlightRecorder.isAvailable()) {
+            assertFalse(UCFlightRecorder.enable(true))
+            val ctx = mutableListOf<String>()
+            assertFailsWith<IllegalStateException> { pipeline().consume(listOf(1, 2, 3), ctx) }
+            assertEquals(listOf("id=1", "id=2"), ctx)
+            return
+        }
+
+        // jdk.jfr is accessed reflectively, the tests being compiled for Java 8
+        val recording = Class.forName("jdk.jfr.Recording").newInstance()
+        recording.javaClass.getMethod("enable", String::class.java).invoke(recording, "unilines.Pipeline")
+        recording.javaClass.getMethod("enable", String::class.java).invoke(recording, "unilines.Field")
+        recording.javaClass.getMethod("start").invoke(recording)
+
+        UCFlightRecorder.enable(true)
+        assertFailsWith<IllegalStateException> { pipeline().consume(listOf(1, 2, 3), mutableListOf()) }
+
+        val file = folder.root.toPath().resolve("events.jfr")
+        recording.javaClass.getMethod("stop").invoke(recording)
+        recording.javaClass.getMethod("dump", Path::class.java).invoke(recording, file)
+        val events = Class.forName("jdk.jfr.consumer.RecordingFile")
+                .getMethod("readAllEvents", Path::class.java)
+                .invoke(null, file) as List<*>
+        val recorded = events.map { e ->
+            val type = e!!.javaClass.getMethod("getEventType").invoke(e)
+            val name = type.javaClass.getMethod("getName").invoke(type)
+            val get = e.javaClass.getMethod("getValue", String::class.java)
+            "$name:${get.invoke(e, "externalName")}:${get.invoke(e, "items")}:${get.invoke(e, "failed")}"
+        }
+
+        assertEquals(listOf("unilines.Field:identifier:1:false",
+                "unilines.Field:identifier:1:false",
+                "unilines.Field:identifier:1:true",
+                "unilines.Pipeline:items:3:true"), recorded.sorted())
+    }
+}
@@ -0,0 +1,219 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import org.junit.Test
+import java.util.concurrent.Executors
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class UCFlowProcessorTest {
+
+    /**
+     * Synchronous publisher of a range, recording requests
+     */
+    private class RangePublisher(val size: Int) : UCFlow.Publisher<Int> {
+        val requests = mutableListOf<Long>()
+        var cancelled = false
+
+        override fun subscribe(subscriber: UCFlow.Subscriber<Int>) {
+            var next = 1
+            subscriber.onSubscribe(object : UCFlow.Subscription {
+                override fun request(n: Long) {
+                    requests.add(n)
+                    var left = n
+                    while (left > 0 && next <= size && !cancelled) {
+                        subscriber.onNext(next++)
+                        left -= 1
+                    }
+                    if (next > size && !cancelled) {
+                        cancelled = true
+                        subscriber.onComplete()
+                    }
+                }
+
+                override fun cancel() {
+                    cancelled = true
+                }
+            })
+        }
+    }
+
+    /**
+     * Subscriber requesting items one by one, on demand
+     */
+    private class SlowSubscriber(val failOn: Int = -1) : UCFlow.Subscriber<MutableMap<String, Int?>> {
+        lateinit var subscription: UCFlow.Subscription
+        val items = mutableListOf<Int?>()
+        var completed = false
+        var error: Throwable? = null
+
+        override fun onSubscribe(subscription: UCFlow.Subscription) {
+            this.subscription = subscription
+        }
+
+        override fun onNext(item: MutableMap<String, Int?>) {
+            if (item["id"] == failOn) throw IllegalArgumentException("rejected")
+            items.add(item["id"])
+        }
+
+        override fun onError(throwable: Throwable) {
+            error = throwable
+        }
+
+        override fun onComplete() {
+            completed = true
+        }
+    }
+
+    private val pipeline = UCField.Extracting<Int, MutableMap<String, Int?>, Int>(UField.of("id"),
+            { i -> if (i == 13) throw IllegalStateException("unlucky") else if (i == 17) throw AssertionError("broken") else i },
+            { r, c -> c.put("id", r) })
+
+    /**
+     * Interfaces of the same shape as java.util.concurrent.Flow and org.reactivestreams
+     */
+    interface RsPublisher<T> {
+        fun subscribe(s: RsSubscriber<in T>)
+    }
+
+    interface RsSubscriber<T> {
+        fun onSubscribe(s: RsSubscription)
+        fun onNext(item: T)
+        fun onError(t: Throwable)
+        fun onComplete()
+    }
+
+    interface RsSubscription {
+        fun request(n: Long)
+        fun cancel()
+    }
+
+    interface RsProcessor<T, R> : RsSubscriber<T>, RsPublisher<R>
+
+    @Test
+    fun testUpstreamIsThrottledByDemand() {
+        val publisher = RangePublisher(10)
+        val subscriber = SlowSubscriber()
+        val processor = UCFlowProcessor(pipeline, { mutableMapOf<String, Int?>() }, 4)
+        processor.subscribe(subscriber)
+        publisher.subscribe(processor)
+
+        assertTrue(publisher.requests.isEmpty())
+
+        subscriber.subscription.request(3)
+        assertEquals<List<Int?>>(listOf(1, 2, 3), subscriber.items)
+        assertEquals(listOf(3L), publisher.requests)
+
+        subscriber.subscription.request(100)
+        assertEquals<List<Int?>>((1..10).toList(), subscriber.items)
+        assertEquals(listOf(3L, 4L, 4L), publisher.requests)
+        assertTrue(subscriber.completed)
+    }
+
+    @Test
+    fun testParallelBatchesKeepOrder() {
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            val publisher = RangePublisher(12)
+            val subscriber = SlowSubscriber()
+            val processor = UCFlowProcessor(pipeline, { mutableMapOf<String, Int?>() }, 5, executor)
+            processor.subscribe(subscriber)
+            publisher.subscribe(processor)
+            subscriber.subscription.request(Long.MAX_VALUE)
+
+            assertEquals<List<Int?>>((1..12).toList(), subscriber.items)
+            assertTrue(subscriber.completed)
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    @Test
+    fun testConversionErrorCancelsUpstream() {
+        val publisher = RangePublisher(20)
+        val subscriber = SlowSubscriber()
+        val processor = UCFlowProcessor(pipeline, { mutableMapOf<String, Int?>() }, 2)
+        processor.subscribe(subscriber)
+        publisher.subscribe(processor)
+        subscriber.subscription.request(Long.MAX_VALUE)
+
+        assertEquals<List<Int?>>((1..12).toList(), subscriber.items)
+        assertTrue(subscriber.error is IllegalStateException)
+        assertTrue(publisher.cancelled)
+    }
+
+    @Test
+    fun testConversionFatalErrorCancelsUpstream() {
+        val publisher = RangePublisher(20)
+        val subscriber = SlowSubscriber()
+        val processor = UCFlowProcessor(pipeline.withExtractionErrorHandler({ _, _ -> null }),
+                { mutableMapOf<String, Int?>() }, 2)
+        processor.subscribe(subscriber)
+        publisher.subscribe(processor)
+        subscriber.subscription.request(Long.MAX_VALUE)
+
+        assertEquals(16, subscriber.items.size)
+        assertTrue(subscriber.error is AssertionError)
+        assertTrue(publisher.cancelled)
+    }
+
+    @Test
+    fun testDownstreamErrorCancelsUpstream() {
+        val publisher = RangePublisher(20)
+        val subscriber = SlowSubscriber(failOn = 5)
+        val processor = UCFlowProcessor(pipeline, { mutableMapOf<String, Int?>() }, 2)
+        processor.subscribe(subscriber)
+        publisher.subscribe(processor)
+        subscriber.subscription.request(Long.MAX_VALUE)
+
+        assertEquals<List<Int?>>((1..4).toList(), subscriber.items)
+        assertNull(subscriber.error)
+        assertFalse(subscriber.completed)
+        assertTrue(publisher.cancelled)
+    }
+
+    @Test
+    fun testInvalidRequestCancelsUpstream() {
+        val publisher = RangePublisher(20)
+        val subscriber = SlowSubscriber()
+        val processor = UCFlowProcessor(pipeline, { mutableMapOf<String, Int?>() }, 2)
+        processor.subscribe(subscriber)
+        publisher.subscribe(processor)
+        subscriber.subscription.request(3)
+        subscriber.subscription.request(0)
+
+        assertEquals<List<Int?>>((1..3).toList(), subscriber.items)
+        assertTrue(subscriber.error is IllegalArgumentException)
+        assertTrue(publisher.cancelled)
+    }
+
+    @Test
+    fun testProcessorIsBridged() {
+        val bridge = UCFlow.Bridge(RsPublisher::class.java, RsSubscriber::class.java,
+                RsSubscription::class.java, RsProcessor::class.java)
+        val publisher: RsPublisher<Int> = bridge.toPublisher(RangePublisher(10))
+        val processor: RsProcessor<Int, MutableMap<String, Int?>> =
+                bridge.toProcessor(UCFlowProcessor(pipeline, { mutableMapOf<String, Int?>() }, 4))
+        val subscriber = SlowSubscriber()
+        processor.subscribe(bridge.toSubscriber(subscriber))
+        publisher.subscribe(processor)
+        subscriber.subscription.request(100)
+
+        assertEquals<List<Int?>>((1..10).toList(), subscriber.items)
+        assertTrue(subscriber.completed)
+        assertTrue(subscriber === bridge.fromSubscriber<MutableMap<String, Int?>>(bridge.toSubscriber(subscriber)))
+    }
+
+    @Test
+    fun testFlowBridgeIsAvailableFromJava9() {
+        val hasFlow = try {
+            Class.forName("java.util.concurrent.Flow")
+            true
+        } catch (e: ClassNotFoundException) {
+            false
+        }
+        assertEquals(hasFlow, UCFlow.flow() != null)
+    }
+}
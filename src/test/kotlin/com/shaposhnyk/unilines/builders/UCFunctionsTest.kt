@@ -0,0 +1,60 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class UCFunctionsTest {
+
+    private class Appending : (String?, MutableList<String>) -> Unit, UCConsumer<String, MutableList<String>> {
+        override fun invoke(t: String?, c: MutableList<String>) = accept(t, c)
+
+        override fun accept(t: String?, c: MutableList<String>) {
+            c.add(t ?: "null")
+        }
+    }
+
+    @Test
+    fun testSamIsNotWrapped() {
+        val consumer = Appending()
+        val sam: Any = UCConsumer.of<String, MutableList<String>>(consumer)
+        assertTrue(consumer === sam)
+    }
+
+    @Test
+    fun testCompositionIsNotWrapped() {
+        val composed = Composed({ t: String? -> t?.length }, { l: Int? -> l?.times(2) })
+        val sam: Any = UCExtractor.of(composed)
+        assertTrue(composed === sam)
+        assertEquals(10, UCExtractor.of(composed).extract("brian"))
+
+        val bound = FieldBound(UField.of("name"), { f: UField, t: String? -> f.externalName() + t })
+        assertTrue(bound === UCExtractor.of(bound) as Any)
+        assertEquals("namebrian", UCExtractor.of(bound).extract("brian"))
+    }
+
+    @Test
+    fun testLambdaIsWrappedOnce() {
+        val ctx = mutableListOf<String>()
+        UCConsumer.of { t: String?, c: MutableList<String> -> c.add(t!!) }.accept("first", ctx)
+        UCWriter.of { v: Int?, c: MutableList<String> -> c.add(v.toString()) }.write(2, ctx)
+        ctx.add(UCExtractor.of { t: String? -> t?.length }.extract("three").toString())
+
+        assertEquals(listOf("first", "2", "5"), ctx)
+    }
+
+    @Test
+    fun testWrappersKeepSemantics() {
+        val ctx = mutableListOf<String>()
+        val field = UCField.Extracting<String, MutableList<String>, Int>(UField.of("length"), { it?.length },
+                { v, c -> c.add(v.toString()) })
+                .postFilter { it != 0 }
+                .filter { t, _ -> t != "skip" }
+                .withErrorHandler { _, _, c -> c.add("error") }
+
+        listOf("one", "", "skip", null).forEach { field.consume(it, ctx) }
+
+        assertEquals(listOf("3", "null"), ctx)
+    }
+}
@@ -0,0 +1,65 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UBiPipeline
+import com.shaposhnyk.unilines.UField
+import org.junit.Test
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class UCRegistryTest {
+
+    private val builds = AtomicInteger()
+
+    private fun pipelineOf(name: String): UBiPipeline<*, *> {
+        builds.incrementAndGet()
+        return UCObjects.of<String, MutableList<String>>(UField.of(name))
+                .field(UCField.Simple(UField.of(name), { s: String?, c: MutableList<String> -> c.add("$name:$s") }))
+                .build()
+    }
+
+    @Test
+    fun testBuiltOnFirstUse() {
+        val registry = UCRegistry<String>()
+                .register("user", { pipelineOf("user") })
+                .register("group", { pipelineOf("group") })
+
+        assertEquals(0, builds.get())
+        assertFalse(registry.isBuilt("user"))
+
+        val ctx = mutableListOf<String>()
+        registry.get<String, MutableList<String>>("user").consume("brian", ctx)
+        registry.get<String, MutableList<String>>("user").consume("harry", ctx)
+
+        assertEquals(listOf("user:brian", "user:harry"), ctx)
+        assertEquals(1, builds.get())
+        assertTrue(registry.isBuilt("user"))
+        assertFalse(registry.isBuilt("group"))
+        assertEquals(setOf("user"), registry.buildTimes().keys)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun testUnknownType() {
+        UCRegistry<String>().get<String, MutableList<String>>("user")
+    }
+
+    @Test
+    fun testPrebuild() {
+        val registry = UCRegistry<Int>()
+        (1..20).forEach { i -> registry.register(i, { pipelineOf("type$i") }) }
+
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            registry.prebuild(executor).get(10, TimeUnit.SECONDS)
+        } finally {
+            executor.shutdown()
+        }
+
+        assertEquals(20, builds.get())
+        assertEquals(registry.keys(), registry.buildTimes().keys)
+        assertTrue((1..20).all { registry.isBuilt(it) })
+    }
+}
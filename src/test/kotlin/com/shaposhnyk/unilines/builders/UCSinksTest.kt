@@ -0,0 +1,44 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import org.junit.Test
+import org.w3c.dom.Element
+import javax.xml.parsers.DocumentBuilderFactory
+import kotlin.test.assertEquals
+
+class UCSinksTest {
+    data class User(val login: String, val manager: String)
+
+    private val json = UCSink<MutableMap<String, Any?>>(0)
+    private val xml = UCSink<Element>(1)
+
+    private val extracted = mutableListOf<String>()
+
+    private fun field(name: String, fx: (User) -> String) = UCField.UExtracting<User, Any?, String>(UField.of(name),
+            { u -> extracted.add(name); fx(u!!) })
+            .decorate { s -> s?.toUpperCase() }
+            .withWriters(
+                    json.bind { v, c -> c.put(name, v) },
+                    xml.bind { v, c -> c.appendChild(c.ownerDocument.createElement(name)).textContent = v.toString() })
+
+    @Test
+    fun testValuesAreExtractedOnceForAllSinks() {
+        val pipeline = UCObjects.of<User, UCSinks>(UField.of("user"))
+                .ofContextMap(UCSinks.mapping(
+                        json.map { c -> mutableMapOf<String, Any?>().apply { c.put("user", this) } },
+                        xml.map { c -> c.appendChild(c.ownerDocument.createElement("user")) as Element }))
+                .field(field("login", { u -> u.login }))
+                .field(field("manager", { u -> u.manager }))
+                .build()
+
+        val map = mutableMapOf<String, Any?>()
+        val doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument()
+        val root = doc.appendChild(doc.createElement("root")) as Element
+        pipeline.consume(User("ann", "bob"), UCSinks.of(map, root))
+
+        assertEquals(mapOf<String, Any?>("user" to mapOf("login" to "ANN", "manager" to "BOB")), map)
+        assertEquals("ANN", root.getElementsByTagName("login").item(0).textContent)
+        assertEquals("BOB", (root.firstChild as Element).getElementsByTagName("manager").item(0).textContent)
+        assertEquals(listOf("login", "manager"), extracted)
+    }
+}
@@ -0,0 +1,315 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class UCStagesTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    /**
+     * Source recording pulled items and limit hints
+     */
+    private class Source(val size: Int) : UCLimitedSource<Int>, AutoCloseable {
+        var pulled = 0
+        var hint = -1L
+        var closed = false
+
+        override fun limitTo(maxItems: Long): Iterable<Int> {
+            hint = maxItems
+            return this
+        }
+
+        override fun iterator(): Iterator<Int> = generateSequence(1, { it + 1 })
+                .take(size)
+                .onEach { pulled += 1 }
+                .iterator()
+
+        override fun close() {
+            closed = true
+        }
+    }
+
+    private val converted = mutableListOf<Int>()
+
+    private fun items() = UCObjects.of<Source, MutableList<String>>(UField.of("items"))
+            .flatMap { s -> s!! }
+
+    private fun id(fx: (Int?) -> Unit = {}) = UCField.Extracting<Int, MutableList<String>, Int>(UField.of("id"),
+            { i -> converted.add(i!!); fx(i); i },
+            { i, c -> c.add("id=$i") })
+
+    @Test
+    fun testOffsetAndLimit() {
+        val source = Source(1000)
+        val ctx = mutableListOf<String>()
+        items().offset(200).limit(3).field(id()).build().consume(source, ctx)
+
+        assertEquals(listOf("id=201", "id=202", "id=203"), ctx)
+        assertEquals(listOf(201, 202, 203), converted)
+        assertEquals(203, source.pulled)
+        assertEquals(203L, source.hint)
+        assertTrue(source.closed)
+    }
+
+    @Test
+    fun testSourceIsOpenWhileLastItemIsConverted() {
+        val source = Source(1000)
+        val openWhileConverted = mutableListOf<Boolean>()
+        items().limit(2).field(id({ openWhileConverted.add(!source.closed) })).build().consume(source, mutableListOf())
+
+        assertEquals(listOf(true, true), openWhileConverted)
+        assertTrue(source.closed)
+    }
+
+    @Test
+    fun testSourceIsClosedWhenIteratorFails() {
+        val source = object : Iterable<Int>, AutoCloseable {
+            var closed = false
+
+            override fun iterator(): Iterator<Int> = throw IllegalStateException("cursor not opened")
+
+            override fun close() {
+                closed = true
+            }
+        }
+        val pipeline = UCObjects.of<Any, MutableList<String>>(UField.of("items"))
+                .flatMap { source }
+                .field(id())
+                .build()
+
+        assertFailsWith<IllegalStateException> { pipeline.consume(Any(), mutableListOf()) }
+        assertTrue(source.closed)
+    }
+
+    @Test
+    fun testSlicesAreCombined() {
+        val ctx = mutableListOf<String>()
+        items().limit(10).offset(8).limit(5).field(id()).build().consume(Source(1000), ctx)
+
+        assertEquals(listOf("id=9", "id=10"), ctx)
+    }
+
+    @Test
+    fun testFirst() {
+        val ctx = mutableListOf<String>()
+        items().first().field(id()).build().consume(Source(1000), ctx)
+
+        assertEquals(listOf("id=1"), ctx)
+    }
+
+    @Test
+    fun testShortCircuit() {
+        val source = Source(1000)
+        val ctx = mutableListOf<String>()
+        items().field(id({ i -> if (i!! % 4 == 0) UCShortCircuit.stop() }))
+                .build()
+                .consume(source, ctx)
+
+        assertEquals(listOf("id=1", "id=2", "id=3", "id=4"), ctx)
+        assertEquals(4, source.pulled)
+        assertTrue(source.closed)
+    }
+
+    @Test
+    fun testTopK() {
+        val ctx = mutableListOf<String>()
+        items().topK(3, { i -> (i * 37) % 101 }, reverseOrder())
+                .field(id())
+                .build()
+                .consume(Source(100), ctx)
+
+        val expected = (1..100).sortedByDescending { (it * 37) % 101 }.take(3)
+        assertEquals(expected.map { "id=$it" }, ctx)
+        assertEquals(expected, converted)
+    }
+
+    @Test
+    fun testTopKIsCancelledWhileDrainingSource() {
+        val source = Source(1000)
+        val token = UCCancellation()
+        val pipeline = items().topK(3, { i -> if (i == 10) token.cancel(); i })
+                .field(id())
+                .build()
+
+        assertFailsWith<UCCancelledException> { token.attach { pipeline.consume(source, mutableListOf()) } }
+        assertEquals(10, source.pulled)
+        assertTrue(source.closed)
+        assertEquals(listOf<Int>(), converted)
+    }
+
+    @Test
+    fun testTopKKeepsSourceOrderOnTies() {
+        val ctx = mutableListOf<String>()
+        items().topK(4, { i -> i % 2 }).field(id()).build().consume(Source(100), ctx)
+
+        assertEquals(listOf("id=2", "id=4", "id=6", "id=8"), ctx)
+    }
+
+    @Test
+    fun testExternalSort() {
+        val words = (1..1000).map { "w" + ((it * 7919) % 1000) }
+        val ctx = mutableListOf<String>()
+        val dir = folder.newFolder().toPath()
+        UCObjects.of<List<String>, MutableList<String>>(UField.of("words"))
+                .flatMap { it!! }
+                .sorted({ w -> w }, naturalOrder<String>(), UCCodecs.strings(), 10, dir)
+                .field(UCField.Simple(UField.of("word"), { w: String?, c: MutableList<String> -> c.add(w!!) }))
+                .build()
+                .consume(words, ctx)
+
+        assertEquals(words.sorted(), ctx)
+        assertEquals(0, dir.toFile().list().size)
+    }
+
+    @Test
+    fun testExternalSortCleansUpOnFailure() {
+        val words = (1..1000).map { "w" + ((it * 7919) % 1000) }
+        val dir = folder.newFolder().toPath()
+        val pipeline = UCObjects.of<List<String>, MutableList<String>>(UField.of("words"))
+                .flatMap { it!! }
+                .sorted({ w -> w }, naturalOrder<String>(), UCCodecs.strings(), 10, dir)
+                .field(UCField.Simple(UField.of("word"), { w: String?, c: MutableList<String> ->
+                    if (c.size == 5) throw IllegalStateException("failed on " + w)
+                    c.add(w!!)
+                }))
+                .build()
+
+        assertFailsWith<IllegalStateException> { pipeline.consume(words, mutableListOf()) }
+        assertEquals(0, dir.toFile().list().size)
+    }
+
+    @Test
+    fun testExternalSortIsStableAcrossRuns() {
+        val words = (1..300).map { "k" + (it % 3) + ":" + it }
+        val ctx = mutableListOf<String>()
+        UCObjects.of<List<String>, MutableList<String>>(UField.of("words"))
+                .flatMap { it!! }
+                .sorted({ w -> w.substring(0, 2) }, naturalOrder<String>(), UCCodecs.strings(), 2)
+                .field(UCField.Simple(UField.of("word"), { w: String?, c: MutableList<String> -> c.add(w!!) }))
+                .build()
+                .consume(words, ctx)
+
+        assertEquals(words.sortedBy { it.substring(0, 2) }, ctx)
+    }
+
+    data class User(val department: String, val lastLogin: Long, val score: Double, val city: String)
+
+    @Test
+    fun testGroupBy() {
+        val users = (1..3000).map { i -> User("d" + (i % 3), i.toLong(), 0.5, "c" + (i % 700)) }
+        val ctx = mutableListOf<String>()
+        UCObjects.of<List<User>, MutableList<String>>(UField.of("users"))
+                .flatMap { it!! }
+                .groupBy { u -> u.department }
+                .count("count")
+                .min("firstLogin", { u -> u.lastLogin })
+                .max("lastLogin", { u -> u.lastLogin })
+                .sumDouble("score", { u -> u.score })
+                .distinct("cities", { u -> u.city })
+                .aggregate()
+                .field(UCField.Simple(UField.of("group"), { g: UCGroup<String>?, c: MutableList<String> ->
+                    c.add("${g!!.key}:${g["count"]}:${g["firstLogin"]}:${g["lastLogin"]}:${g["score"]}")
+                    assertTrue(Math.abs(g.getLong("cities") - 700) < 30, "cities: " + g["cities"])
+                }))
+                .build()
+                .consume(users, ctx)
+
+        assertEquals(listOf("d1:1000:1:2998:500.0", "d2:1000:2:2999:500.0", "d0:1000:3:3000:500.0"), ctx)
+    }
+
+    @Test
+    fun testHyperLogLog() {
+        val sketch = UCHyperLogLog(14)
+        (1..100000).forEach { sketch.add("user" + it) }
+        (1..100000).forEach { sketch.add("user" + it) }
+
+        assertTrue(Math.abs(sketch.estimate() - 100000) < 2000, "estimate: " + sketch.estimate())
+    }
+
+    @Test
+    fun testDistinct() {
+        val ctx = mutableListOf<String>()
+        items().distinct { i -> i % 7 }.field(id()).build().consume(Source(100), ctx)
+
+        assertEquals((1..7).map { "id=$it" }, ctx)
+        assertEquals((1..7).toList(), converted)
+    }
+
+    @Test
+    fun testDistinctLong() {
+        val ctx = mutableListOf<String>()
+        items().distinctLong { i -> (i % 50).toLong() * 1000000007L }.limit(60).field(id()).build().consume(Source(1000), ctx)
+
+        assertEquals((1..50).map { "id=$it" }, ctx)
+    }
+
+    @Test
+    fun testDistinctApprox() {
+        val ctx = mutableListOf<String>()
+        items().distinctApprox({ i -> "k" + (i % 5000) }, 5000).field(id()).build().consume(Source(20000), ctx)
+
+        assertTrue(ctx.size in 4900..5000, "unique: " + ctx.size)
+        assertTrue(converted.all { it <= 5000 })
+    }
+
+    @Test
+    fun testOpenHashSeen() {
+        val seen = OpenHashSeen()
+        assertTrue((1..10000).all { seen.add("v$it") })
+        assertTrue((1..10000).none { seen.add("v$it") })
+        assertTrue(seen.add(null))
+        assertTrue(!seen.add(null))
+    }
+
+    data class Directory(val users: List<String>, val groups: List<Pair<String, String>>)
+
+    private fun memberships() = UCField.Simple(UField.of("membership"),
+            { p: Pair<String, Pair<String, String>?>?, c: MutableList<String> -> c.add(p!!.first + ":" + p.second?.second) })
+
+    @Test
+    fun testMergeJoin() {
+        val dir = Directory(listOf("ann", "bob", "bob", "eve", "tom"),
+                listOf("amy" to "g0", "ann" to "g1", "bob" to "g2", "bob" to "g3", "tom" to "g4", "zed" to "g5"))
+        val ctx = mutableListOf<String>()
+        UCObjects.of<Directory, MutableList<String>>(UField.of("users"))
+                .flatMap { d -> d!!.users }
+                .mergeJoin({ d -> d!!.groups }, { u -> u }, { g -> g.first })
+                .field(memberships())
+                .build()
+                .consume(dir, ctx)
+
+        assertEquals(listOf("ann:g1", "bob:g2", "bob:g3", "bob:g2", "bob:g3", "eve:null", "tom:g4"), ctx)
+    }
+
+    @Test
+    fun testMergeJoinRejectsUnsortedSource() {
+        val dir = Directory(listOf("ann", "bob"), listOf("bob" to "g2", "ann" to "g1"))
+        val pipeline = UCObjects.of<Directory, MutableList<String>>(UField.of("users"))
+                .flatMap { d -> d!!.users }
+                .mergeJoin({ d -> d!!.groups }, { u -> u }, { g -> g.first }, false)
+                .field(memberships())
+                .build()
+
+        assertFailsWith<IllegalStateException> { pipeline.consume(dir, mutableListOf()) }
+    }
+
+    @Test
+    fun testHashJoin() {
+        val dir = Directory(listOf("tom", "bob", "eve", "ann"), listOf("bob" to "g2", "tom" to "g4", "ann" to "g1", "bob" to "g3"))
+        val ctx = mutableListOf<String>()
+        UCObjects.of<Directory, MutableList<String>>(UField.of("users"))
+                .flatMap { d -> d!!.users }
+                .hashJoin({ d -> d!!.groups }, { u -> u }, { g -> g.first }, false)
+                .field(memberships())
+                .build()
+                .consume(dir, ctx)
+
+        assertEquals(listOf("tom:g4", "bob:g2", "bob:g3", "ann:g1"), ctx)
+    }
+}
@@ -0,0 +1,56 @@
+package com.shaposhnyk.unilines.builders
+
+import com.shaposhnyk.unilines.UField
+import org.junit.Test
+import java.util.concurrent.Executors
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class UCWarmupTest {
+    private fun pipeline(name: String) = UCObjects.of<Map<String, Int>, MutableMap<String, Any?>>(UField.of(name))
+            .field(UCField.Extracting<Map<String, Int>, MutableMap<String, Any?>, Int>(UField.of("id"),
+                    { m -> m!!["id"]!! * 2 },
+                    { i, c -> c.put("id", i) }))
+            .build()
+
+    @Test
+    fun testIterations() {
+        val samples = listOf(mapOf("id" to 1), mapOf("id" to 2), mapOf())
+        val executor = Executors.newFixedThreadPool(2)
+        try {
+            val results = UCWarmup()
+                    .with(pipeline("users"), samples, { mutableMapOf<String, Any?>() })
+                    .with(pipeline("groups"), { i -> mapOf("id" to i) }, { mutableMapOf<String, Any?>() })
+                    .withIterations(2500)
+                    .run(executor)
+
+            assertEquals(listOf("users", "groups"), results.map { it.field.externalName() })
+            assertEquals(listOf(2500, 2500), results.map { it.iterations })
+            assertEquals(listOf(833, 0), results.map { it.failures })
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @Test
+    fun testUntilStable() {
+        val result = UCWarmup()
+                .with(pipeline("users"), { i -> mapOf("id" to i) }, { mutableMapOf<String, Any?>() })
+                .withIterations(100)
+                .untilStable(2, 500)
+                .withMaxMillis(30000)
+                .run()
+                .single()
+
+        assertTrue(result.iterations >= 600)
+        assertTrue(result.stable || result.millis >= 30000)
+    }
+
+    @Test
+    fun testInvalidRounds() {
+        assertFailsWith<IllegalArgumentException> { UCWarmup().untilStable(3, 0) }
+        assertFailsWith<IllegalArgumentException> { UCWarmup().untilStable(-1) }
+        assertFailsWith<IllegalArgumentException> { UCWarmup().withMaxMillis(0) }
+    }
+}